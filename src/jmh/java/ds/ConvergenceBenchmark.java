@@ -0,0 +1,102 @@
+package ds;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Measures how long each optimizer and sampling takes to learn the standard truth tables.
+// Every invocation trains a fresh network, seeded by the invocation number, until its total error is
+// below TARGET_ERROR or MAX_STEPS steps have run, so the score is the wall time to converge. The mean
+// number of steps and the share of runs that converged are printed when each trial ends, because a
+// fast rule that often gets stuck is not a good default.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 30)
+@Fork(1)
+public class ConvergenceBenchmark {
+
+    static final double TARGET_ERROR = 0.01;
+    static final int MAX_STEPS = 100000;
+
+    @Param({"AND", "OR", "XOR", "NAND"})
+    String table;
+
+    @Param({"sgd", "momentum", "nesterov", "rmsprop", "adam"})
+    String optimizer;
+
+    @Param({"random", "epoch"})
+    String sampling;
+
+    NeuralNetworkServer server;
+    NeuralNetworkServer.TrainingRequest request;
+    Model model;
+    long seed;
+    long runs;
+    long steps;
+    long converged;
+    PrintStream console;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        server = new NeuralNetworkServer();
+        request = new NeuralNetworkServer.TrainingRequest("train", MAX_STEPS);
+        request.targetError = TARGET_ERROR;
+        request.checkInterval = 10;
+        request.optimizer = optimizer;
+        request.sampling = sampling;
+    }
+
+    // A fresh network for each run, so every run starts from its own random weights.
+    @Setup(Level.Invocation)
+    public void newModel() {
+        double[] outputs;
+        switch (table) {
+            case "AND":
+                outputs = new double[]{0, 0, 0, 1};
+                break;
+            case "OR":
+                outputs = new double[]{0, 1, 1, 1};
+                break;
+            case "XOR":
+                outputs = new double[]{0, 1, 1, 0};
+                break;
+            default:
+                outputs = new double[]{1, 1, 1, 0};
+                break;
+        }
+        ArrayList<Double[][]> rows = new ArrayList<Double[][]>();
+        for (int r = 0; r < 4; r++) {
+            rows.add(new Double[][]{{(double) (r >> 1), (double) (r & 1)}, {outputs[r]}});
+        }
+        seed++;
+        model = new Model("benchmark", new NeuralNetwork(new DenseNetwork(2, 5, 1, new Random(seed))), rows);
+        request.seed = seed;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(console);
+        System.out.println();
+        System.out.printf("%s, %s, %s sampling: %d mean steps, %d of %d runs converged%n",
+                table, optimizer, sampling, runs == 0 ? 0 : steps / runs, converged, runs);
+    }
+
+    @Benchmark
+    public double train() {
+        NeuralNetworkServer.TrainingResult result = server.trainSteps(model, MAX_STEPS, request, server.trainingRandom(request));
+        runs++;
+        steps += result.steps();
+        if (result.converged()) {
+            converged++;
+        }
+        return result.error();
+    }
+}
@@ -0,0 +1,83 @@
+package ds;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Benchmarks of the network math: training steps, a single forward pass and the total error,
+// for several hidden layer widths and both Kernels backends. The XOR truth table is used throughout.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class NetworkBenchmark {
+
+    // The Kernels backend, chosen before the first network is built in each forked JVM.
+    @Param({"scalar", "vector"})
+    String backend;
+
+    @Param({"5", "32", "128"})
+    int hiddenWidth;
+
+    @Param({"1", "1000", "10000"})
+    int iterations;
+
+    NeuralNetwork neuralNetwork;
+    Random rand;
+    double[][] trainingInputs = {{0.0, 0.0}, {0.0, 1.0}, {1.0, 0.0}, {1.0, 1.0}};
+    double[][] trainingOutputs = {{0.0}, {1.0}, {1.0}, {0.0}};
+    ArrayList<Double[][]> trainingSets = new ArrayList<Double[][]>(Arrays.asList(
+            new Double[][]{{0.0, 0.0}, {0.0}},
+            new Double[][]{{0.0, 1.0}, {1.0}},
+            new Double[][]{{1.0, 0.0}, {1.0}},
+            new Double[][]{{1.0, 1.0}, {0.0}}));
+    List<Double> testInputs = Arrays.asList(1.0, 0.0);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        System.setProperty("nn.backend", backend);
+        neuralNetwork = new NeuralNetwork(2, hiddenWidth, 1, null, null, null, null);
+        rand = new Random(42);
+    }
+
+    // The training loop of getTrain on the primitive arrays.
+    @Benchmark
+    public double train() {
+        for (int i = 0; i < iterations; i++) {
+            int row = rand.nextInt(4);
+            neuralNetwork.train(trainingInputs[row], trainingOutputs[row]);
+        }
+        return neuralNetwork.calculateTotalError(trainingInputs, trainingOutputs);
+    }
+
+    // The same loop through the List based compatibility methods.
+    @Benchmark
+    public void trainBoxed() {
+        for (int i = 0; i < iterations; i++) {
+            int row = rand.nextInt(4);
+            neuralNetwork.train(Arrays.asList(trainingSets.get(row)[0]), Arrays.asList(trainingSets.get(row)[1]));
+        }
+    }
+
+    @Benchmark
+    public void feedForward(Blackhole blackhole) {
+        blackhole.consume(neuralNetwork.feedForward(trainingInputs[2]));
+    }
+
+    @Benchmark
+    public List<Double> feedForwardBoxed() {
+        return neuralNetwork.feedForward(testInputs);
+    }
+
+    @Benchmark
+    public double calculateTotalError() {
+        return neuralNetwork.calculateTotalError(trainingSets);
+    }
+}
@@ -0,0 +1,77 @@
+package ds;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+// Benchmarks of the in-process request path: the client builds the JSON or binary payload, the
+// server parses and dispatches it and serializes the response. No datagrams are sent.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmark {
+
+    @Param({"getCurrentRange", "setCurrentRange", "train", "test"})
+    String requestType;
+
+    @Param({"json", "binary"})
+    String protocol;
+
+    // Training steps carried by each train request.
+    @Param({"1", "1000"})
+    int iterations;
+
+    NeuralNetworkServer server;
+    NeuralNetworkClient client;
+    PrintStream console;
+    ByteBuffer buffer = ByteBuffer.allocate(1000);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // The handlers print every request; keep the console out of the measurement.
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        server = new NeuralNetworkServer();
+        client = new NeuralNetworkClient();
+        server.parseRequest(NeuralNetworkClient.gson.toJson(client.createTruthTablePayload(0.0, 1.0, 1.0, 0.0)));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(console);
+    }
+
+    @Benchmark
+    public Object request() {
+        HashMap<String, Object> payload;
+        switch (requestType) {
+            case "getCurrentRange":
+                payload = client.getTruthTablePayload();
+                break;
+            case "setCurrentRange":
+                payload = client.createTruthTablePayload(0.0, 1.0, 1.0, 0.0);
+                break;
+            case "train":
+                payload = client.train(iterations);
+                break;
+            default:
+                payload = client.testWithPair(1.0, 0.0);
+                break;
+        }
+        if (protocol.equals("binary")) {
+            buffer.clear();
+            BinaryProtocol.encodeRequest(buffer, 1, payload);
+            buffer.flip();
+            server.parseBinaryRequest(buffer);
+            return buffer;
+        }
+        return server.parseRequest(NeuralNetworkClient.gson.toJson(payload));
+    }
+}
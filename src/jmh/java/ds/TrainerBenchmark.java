@@ -0,0 +1,72 @@
+package ds;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// Compares the sequential SGD loop of trainSteps with the Hogwild trainer on the XOR truth table.
+// Each invocation runs STEPS training steps, so steps per second are the score times STEPS.
+// The total error reached is printed when each trial ends, to weigh the speed of the Hogwild
+// workers against the accuracy lost to their racing updates.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrainerBenchmark {
+
+    static final int STEPS = 10000;
+
+    // 1 runs the sequential loop; more runs that many Hogwild workers.
+    @Param({"1", "2", "4"})
+    int threads;
+
+    @Param({"5", "128"})
+    int hiddenWidth;
+
+    NeuralNetworkServer server;
+    Model model;
+    NeuralNetworkServer.TrainingRequest request;
+    SplittableRandom random;
+    long trained;
+    double error;
+    PrintStream console;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        server = new NeuralNetworkServer();
+        model = new Model("benchmark", new NeuralNetwork(2, hiddenWidth, 1, null, null, null, null),
+                new ArrayList<Double[][]>(Arrays.asList(
+                        new Double[][]{{0.0, 0.0}, {0.0}},
+                        new Double[][]{{0.0, 1.0}, {1.0}},
+                        new Double[][]{{1.0, 0.0}, {1.0}},
+                        new Double[][]{{1.0, 1.0}, {0.0}})));
+        request = new NeuralNetworkServer.TrainingRequest("train", STEPS);
+        request.threads = threads;
+        request.seed = 42L;
+        random = server.trainingRandom(request);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(console);
+        System.out.println();
+        System.out.println("threads " + threads + ", hidden width " + hiddenWidth + ": total error " + error
+                + " after " + trained + " steps");
+    }
+
+    @Benchmark
+    public double train() {
+        error = server.trainSteps(model, STEPS, request, random).error();
+        trained += STEPS;
+        return error;
+    }
+}
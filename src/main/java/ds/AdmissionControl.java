@@ -0,0 +1,338 @@
+package ds;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Decides which requests the server takes on, before any of them is parsed.
+// The receiving thread reads only the request type, from the opcode of a binary request or by scanning
+// the bytes of a JSON one, and the sender's address. A request is refused with a busy reply that tells
+// the client when to try again when
+//
+//   the sender has used up its token bucket: each address earns rate requests per second, up to burst
+//   saved, so one client cannot flood the server. A rate of 0, the default, turns this off.
+//   the queue of the request's priority already holds queueCapacity requests.
+//   the request waited in the queue longer than maxWaitMillis. By then the client has retransmitted it,
+//   and answering the old copy only delays the new one.
+//
+// Admitted requests are run by a fixed set of workers, which always take the highest priority request
+// waiting. At most trainingWorkers of them run LOW requests at once, so a queue of train and sweep
+// requests cannot occupy every worker while test requests wait. Training is CPU bound, so running more
+// of it at once than there are cores does not finish it sooner. reservedWorkers of them only run HIGH
+// requests, so inference still has a worker when NORMAL and LOW requests occupy all the others. The workers are platform threads: a
+// training run never blocks, and on a virtual thread it would keep its carrier from the test requests.
+// Replication messages bypass admission: the primary sends at most one update per model at a time,
+// and an update that was refused would only have to be sent again as a full snapshot.
+class AdmissionControl {
+
+    enum Priority { HIGH, NORMAL, LOW }
+
+    // Inference, status reads and cluster membership, which are cheap and which clients wait on.
+    static final Set<String> HIGH_TYPES = Set.of("test", "testBatch", "getCurrentRange", "getWeights", "stats",
+            "getModelStats", "trainStatus", "clusterStatus", "clusterJoin", "clusterLeave", "clusterUpdate",
+            "replicaSubscribe", "replicationStatus");
+    // Requests that train or rebuild a network and may hold a model's write lock for a long time.
+    static final Set<String> LOW_TYPES = Set.of("train", "sweep", "setTrainingSet", "clusterHandoff");
+
+    // Idle token buckets are dropped once more than this many senders have one.
+    static final int MAX_BUCKETS = 10000;
+
+    private static final byte[] REQUEST_KEY = "\"request\"".getBytes(StandardCharsets.US_ASCII);
+
+    final double rate;
+    final double burst;
+    final int queueCapacity;
+    final int workers;
+    final int trainingWorkers;
+    final int reservedWorkers;
+    final long maxWaitMillis;
+    final long retryAfterMillis;
+
+    private final ConcurrentHashMap<SocketAddress, Bucket> buckets = new ConcurrentHashMap<>();
+    private volatile long lastBucketSweep;
+
+    // The queue of each priority, guarded by lock.
+    private final EnumMap<Priority, ArrayDeque<Task>> queues = new EnumMap<>(Priority.class);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ready = lock.newCondition();
+    private int trainingRunning;
+    // The NORMAL and LOW requests running, which may use every worker but the reserved ones.
+    private int othersRunning;
+    private boolean started;
+
+    private final EnumMap<Priority, LongAdder> admitted = new EnumMap<>(Priority.class);
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder queueFull = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+
+    // An admitted request: its handler, and what to do if it waits too long.
+    private record Task(Priority priority, Runnable handler, Runnable shed, long enqueuedNanos) {
+    }
+
+    // The tokens of one sender. Tokens are added for the time passed whenever the bucket is used.
+    private static final class Bucket {
+        private double tokens;
+        private long lastNanos;
+
+        Bucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.lastNanos = now;
+        }
+
+        // Take a token and return 0, or return the milliseconds until one is earned.
+        synchronized long take(double rate, double burst, long now) {
+            tokens = Math.min(burst, tokens + (now - lastNanos) * rate / 1e9);
+            lastNanos = now;
+            if (tokens >= 1.0) {
+                tokens -= 1.0;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((1.0 - tokens) * 1000.0 / rate));
+        }
+
+        // True if the bucket has been refilled to burst, so dropping it loses nothing.
+        synchronized boolean isFull(double rate, double burst, long now) {
+            return tokens + (now - lastNanos) * rate / 1e9 >= burst;
+        }
+    }
+
+    AdmissionControl(double rate, double burst, int queueCapacity, int workers, int trainingWorkers,
+                     int reservedWorkers, long maxWaitMillis, long retryAfterMillis) {
+        this.rate = rate;
+        this.burst = Math.max(1.0, burst);
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.workers = Math.max(2, workers);
+        this.reservedWorkers = Math.max(1, Math.min(reservedWorkers, this.workers - 1));
+        this.trainingWorkers = Math.max(1, Math.min(trainingWorkers, this.workers - this.reservedWorkers));
+        this.maxWaitMillis = maxWaitMillis;
+        this.retryAfterMillis = Math.max(1, retryAfterMillis);
+        for (Priority priority : Priority.values()) {
+            queues.put(priority, new ArrayDeque<>());
+            admitted.put(priority, new LongAdder());
+        }
+    }
+
+    // Configure admission from the nn.admission.rate, nn.admission.burst, nn.admission.queue,
+    // nn.admission.workers, nn.admission.trainingWorkers, nn.admission.reservedWorkers,
+    // nn.admission.maxWaitMillis and nn.admission.retryAfterMillis system properties.
+    static AdmissionControl fromSystemProperties() {
+        double rate = Double.parseDouble(System.getProperty("nn.admission.rate", "0"));
+        double burst = Double.parseDouble(System.getProperty("nn.admission.burst", String.valueOf(Math.max(1.0, rate))));
+        int workers = Integer.getInteger("nn.admission.workers", 32);
+        return new AdmissionControl(rate, burst,
+                Integer.getInteger("nn.admission.queue", 256),
+                workers,
+                Integer.getInteger("nn.admission.trainingWorkers", Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger("nn.admission.reservedWorkers", Math.max(1, workers / 4)),
+                Long.getLong("nn.admission.maxWaitMillis", 1000L),
+                Long.getLong("nn.admission.retryAfterMillis", 100L));
+    }
+
+    // The request type of a datagram, read without parsing it, or null if it cannot be found.
+    static String requestType(ByteBuffer datagram) {
+        int start = datagram.position();
+        int end = datagram.limit();
+        if (BinaryProtocol.isBinary(datagram)) {
+            return end - start > 3 ? BinaryProtocol.requestType(datagram.get(start + 3)) : null;
+        }
+        for (int i = start; i + REQUEST_KEY.length <= end; i++) {
+            if (!matches(datagram, i, REQUEST_KEY)) {
+                continue;
+            }
+            int at = skipSpaces(datagram, i + REQUEST_KEY.length, end);
+            if (at == end || datagram.get(at) != ':') {
+                continue;
+            }
+            at = skipSpaces(datagram, at + 1, end);
+            if (at == end || datagram.get(at) != '"') {
+                return null;
+            }
+            int close = at + 1;
+            while (close < end && datagram.get(close) != '"') {
+                close++;
+            }
+            byte[] type = new byte[close - at - 1];
+            datagram.get(at + 1, type);
+            return new String(type, StandardCharsets.UTF_8);
+        }
+        return null;
+    }
+
+    private static boolean matches(ByteBuffer datagram, int at, byte[] key) {
+        for (int k = 0; k < key.length; k++) {
+            if (datagram.get(at + k) != key[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipSpaces(ByteBuffer datagram, int at, int end) {
+        while (at < end && Character.isWhitespace(datagram.get(at))) {
+            at++;
+        }
+        return at;
+    }
+
+    // The priority of a request type. Unknown types are NORMAL; their handler answers them with an error.
+    static Priority priority(String requestType) {
+        if (requestType == null) {
+            return Priority.NORMAL;
+        }
+        if (HIGH_TYPES.contains(requestType)) {
+            return Priority.HIGH;
+        }
+        return LOW_TYPES.contains(requestType) ? Priority.LOW : Priority.NORMAL;
+    }
+
+    static Priority priority(ByteBuffer datagram) {
+        return priority(requestType(datagram));
+    }
+
+    // Take a token from the sender's bucket. Return 0 if the request may go ahead, otherwise the
+    // milliseconds until the sender earns its next token.
+    long admit(SocketAddress sender) {
+        if (rate <= 0 || sender == null) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        if (buckets.size() > MAX_BUCKETS && now - lastBucketSweep > TimeUnit.SECONDS.toNanos(1)) {
+            lastBucketSweep = now;
+            buckets.values().removeIf(bucket -> bucket.isFull(rate, burst, now));
+        }
+        long wait = buckets.computeIfAbsent(sender, address -> new Bucket(burst, now)).take(rate, burst, now);
+        if (wait > 0) {
+            rateLimited.increment();
+        }
+        return wait;
+    }
+
+    // Queue a request for the workers. Return false, without queueing it, if its priority's queue is full.
+    // If the request then waits longer than maxWaitMillis, shed is run instead of the handler.
+    boolean submit(Priority priority, Runnable handler, Runnable shed) {
+        lock.lock();
+        try {
+            ArrayDeque<Task> queue = queues.get(priority);
+            if (queue.size() >= queueCapacity) {
+                queueFull.increment();
+                return false;
+            }
+            if (!started) {
+                started = true;
+                for (int w = 0; w < workers; w++) {
+                    Thread.ofPlatform().daemon().name("admission-" + w).start(this::work);
+                }
+            }
+            queue.add(new Task(priority, handler, shed, System.nanoTime()));
+            admitted.get(priority).increment();
+            ready.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Run queued requests, highest priority first, for as long as the server runs.
+    private void work() {
+        long maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        while (true) {
+            Task task;
+            try {
+                task = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                if (maxWaitMillis > 0 && System.nanoTime() - task.enqueuedNanos() > maxWaitNanos) {
+                    shed.increment();
+                    task.shed().run();
+                } else {
+                    task.handler().run();
+                }
+            } catch (RuntimeException e) {
+                Log.error("Request failed: " + e);
+            } finally {
+                if (task.priority() != Priority.HIGH) {
+                    lock.lock();
+                    try {
+                        othersRunning--;
+                        if (task.priority() == Priority.LOW) {
+                            trainingRunning--;
+                        }
+                        ready.signal();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        }
+    }
+
+    // Wait for the highest priority request a worker may run now.
+    private Task take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                for (Priority priority : Priority.values()) {
+                    if (priority != Priority.HIGH && othersRunning >= workers - reservedWorkers) {
+                        break;
+                    }
+                    if (priority == Priority.LOW && trainingRunning >= trainingWorkers) {
+                        continue;
+                    }
+                    Task task = queues.get(priority).poll();
+                    if (task != null) {
+                        if (priority != Priority.HIGH) {
+                            othersRunning++;
+                        }
+                        if (priority == Priority.LOW) {
+                            trainingRunning++;
+                        }
+                        return task;
+                    }
+                }
+                ready.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The settings, queue lengths and counters, for the stats request.
+    HashMap<String, Object> stats() {
+        HashMap<String, Object> stats = new HashMap<>();
+        stats.put("rate", rate);
+        stats.put("burst", burst);
+        stats.put("clients", buckets.size());
+        stats.put("workers", workers);
+        stats.put("trainingWorkers", trainingWorkers);
+        stats.put("reservedWorkers", reservedWorkers);
+        HashMap<String, Object> queued = new HashMap<>();
+        HashMap<String, Object> admittedCounts = new HashMap<>();
+        lock.lock();
+        try {
+            for (Priority priority : Priority.values()) {
+                queued.put(priority.name(), queues.get(priority).size());
+                admittedCounts.put(priority.name(), admitted.get(priority).sum());
+            }
+            stats.put("trainingRunning", trainingRunning);
+        } finally {
+            lock.unlock();
+        }
+        stats.put("queued", queued);
+        stats.put("admitted", admittedCounts);
+        stats.put("rateLimited", rateLimited.sum());
+        stats.put("queueFull", queueFull.sum());
+        stats.put("shed", shed.sum());
+        return stats;
+    }
+}
@@ -0,0 +1,303 @@
+package ds;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+// A compact binary encoding of the requests and responses, used alongside JSON.
+// Every datagram starts with a fixed header, and all numbers are little-endian:
+//
+//   magic      2 bytes  0xB1 0x4E. 0xB1 cannot start a JSON text, so the format is known from the first byte.
+//   version    1 byte   VERSION
+//   opcode     1 byte   the request type; responses set the high bit
+//   request id 4 bytes  chosen by the client and echoed in the response
+//
+// A request continues with the model id (1 byte length, then UTF-8; length 0 is the default model)
+// and then the fields of its opcode:
+//
+//   GET_CURRENT_RANGE  -
+//   SET_CURRENT_RANGE  4 doubles: the range of the truth table
+//   TRAIN              3 ints: iterations, batch size and parallelism (0 = not set)
+//   TEST               2 doubles: the input pair
+//   TEST_BATCH         2 bytes: number of rows, 1 byte: inputs per row, then the rows of doubles
+//
+// A response continues with a status byte (STATUS_OK, STATUS_ERROR or STATUS_BUSY). An OK response then
+// holds the four range values for GET_CURRENT_RANGE, the error for TRAIN, the output for TEST, a 2 byte
+// count and the outputs for TEST_BATCH, and nothing for SET_CURRENT_RANGE. A BUSY response, sent when
+// admission control refused the request, holds a 4 byte int: the milliseconds to wait before sending again.
+class BinaryProtocol {
+
+    static final byte MAGIC_0 = (byte) 0xB1;
+    static final byte MAGIC_1 = (byte) 0x4E;
+    static final byte VERSION = 1;
+
+    static final byte GET_CURRENT_RANGE = 1;
+    static final byte SET_CURRENT_RANGE = 2;
+    static final byte TRAIN = 3;
+    static final byte TEST = 4;
+    static final byte TEST_BATCH = 5;
+    static final byte RESPONSE = (byte) 0x80;
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+    static final byte STATUS_BUSY = 2;
+
+    static final int HEADER_SIZE = 8;
+
+    // The request type names of the opcodes, as used by the JSON requests.
+    private static final String[] REQUEST_TYPES = {null, "getCurrentRange", "setCurrentRange", "train", "test", "testBatch"};
+
+    // The JSON fields a TRAIN request carries.
+    private static final Set<String> TRAIN_FIELDS = Set.of("request", "model", "iterations", "batchSize", "parallelism");
+
+    // A request decoded from a datagram, together with the header fields needed to answer it.
+    record Decoded(byte opcode, int requestId, NeuralNetworkServer.Request request) {
+    }
+
+    // Return true if the datagram in the buffer, from its position, is in the binary format.
+    static boolean isBinary(ByteBuffer datagram) {
+        return datagram.remaining() >= 2 && datagram.get(datagram.position()) == MAGIC_0
+                && datagram.get(datagram.position() + 1) == MAGIC_1;
+    }
+
+    // Return the opcode name used in JSON requests, or null for an unknown opcode.
+    static String requestType(byte opcode) {
+        return opcode > 0 && opcode < REQUEST_TYPES.length ? REQUEST_TYPES[opcode] : null;
+    }
+
+    // Write a request header and the model id.
+    static void writeRequestHeader(ByteBuffer out, byte opcode, int requestId, String model) {
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        out.put(MAGIC_0).put(MAGIC_1).put(VERSION).put(opcode).putInt(requestId);
+        byte[] modelBytes = model == null ? new byte[0] : model.getBytes(StandardCharsets.UTF_8);
+        if (modelBytes.length > 255) {
+            throw new IllegalArgumentException("Model id longer than 255 bytes");
+        }
+        out.put((byte) modelBytes.length).put(modelBytes);
+    }
+
+    // Return the opcode of a JSON request type, or 0 if the type has no binary encoding.
+    static byte opcode(String requestType) {
+        for (byte o = 1; o < REQUEST_TYPES.length; o++) {
+            if (REQUEST_TYPES[o].equals(requestType)) {
+                return o;
+            }
+        }
+        return 0;
+    }
+
+    // Return true if the payload can be sent in this format: its type has an opcode and it sets no
+    // train fields beyond those of TRAIN, such as Hogwild workers or a target error.
+    static boolean canEncode(Map<String, Object> payload) {
+        byte opcode = opcode((String) payload.get("request"));
+        if (opcode == TRAIN) {
+            for (String field : payload.keySet()) {
+                if (!TRAIN_FIELDS.contains(field)) {
+                    return false;
+                }
+            }
+        }
+        return opcode != 0;
+    }
+
+    // Encode a request from the same fields the JSON requests use.
+    static void encodeRequest(ByteBuffer out, int requestId, Map<String, Object> payload) {
+        String requestType = (String) payload.get("request");
+        byte opcode = opcode(requestType);
+        if (opcode == 0) {
+            throw new IllegalArgumentException("No binary opcode for " + requestType);
+        }
+        writeRequestHeader(out, opcode, requestId, (String) payload.get("model"));
+        switch (opcode) {
+            case SET_CURRENT_RANGE:
+                out.putDouble(number(payload, "val1")).putDouble(number(payload, "val2"))
+                        .putDouble(number(payload, "val3")).putDouble(number(payload, "val4"));
+                break;
+            case TRAIN:
+                out.putInt((int) number(payload, "iterations")).putInt((int) number(payload, "batchSize"))
+                        .putInt((int) number(payload, "parallelism"));
+                break;
+            case TEST:
+                out.putDouble(number(payload, "val1")).putDouble(number(payload, "val2"));
+                break;
+            case TEST_BATCH:
+                double[][] inputs = (double[][]) payload.get("inputs");
+                out.putShort((short) inputs.length).put((byte) (inputs.length == 0 ? 0 : inputs[0].length));
+                for (double[] row : inputs) {
+                    for (double input : row) {
+                        out.putDouble(input);
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Decode a request. Throws IllegalArgumentException or BufferUnderflowException if it is malformed.
+    static Decoded decodeRequest(ByteBuffer in) {
+        in.order(ByteOrder.LITTLE_ENDIAN);
+        if (in.get() != MAGIC_0 || in.get() != MAGIC_1) {
+            throw new IllegalArgumentException("Bad magic");
+        }
+        byte version = in.get();
+        byte opcode = in.get();
+        int requestId = in.getInt();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported version " + version);
+        }
+        String requestType = requestType(opcode);
+        if (requestType == null) {
+            throw new IllegalArgumentException("Unknown opcode " + opcode);
+        }
+        byte[] modelBytes = new byte[in.get() & 0xFF];
+        in.get(modelBytes);
+        String model = modelBytes.length == 0 ? null : new String(modelBytes, StandardCharsets.UTF_8);
+        NeuralNetworkServer.Request request;
+        switch (opcode) {
+            case SET_CURRENT_RANGE:
+                request = new NeuralNetworkServer.CreateTruthTableRequest(requestType,
+                        in.getDouble(), in.getDouble(), in.getDouble(), in.getDouble());
+                break;
+            case TRAIN:
+                NeuralNetworkServer.TrainingRequest training = new NeuralNetworkServer.TrainingRequest(requestType, in.getInt());
+                training.batchSize = optional(in.getInt());
+                training.parallelism = optional(in.getInt());
+                request = training;
+                break;
+            case TEST:
+                request = new NeuralNetworkServer.TestWithPairRequest(requestType, in.getDouble(), in.getDouble());
+                break;
+            case TEST_BATCH:
+                int rows = in.getShort() & 0xFFFF;
+                int columns = in.get() & 0xFF;
+                if ((long) rows * columns * Double.BYTES > in.remaining()) {
+                    throw new IllegalArgumentException("Batch larger than the datagram");
+                }
+                double[][] inputs = new double[rows][columns];
+                for (double[] row : inputs) {
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] = in.getDouble();
+                    }
+                }
+                request = new NeuralNetworkServer.TestBatchRequest(requestType, inputs);
+                break;
+            default:
+                request = new NeuralNetworkServer.Request(requestType);
+                break;
+        }
+        request.model = model;
+        return new Decoded(opcode, requestId, request);
+    }
+
+    // Encode the response to a request from the fields the server's handlers return.
+    static void encodeResponse(ByteBuffer out, byte opcode, int requestId, Map<String, Object> response) {
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        out.put(MAGIC_0).put(MAGIC_1).put(VERSION).put((byte) (opcode | RESPONSE)).putInt(requestId);
+        if ("Busy".equals(response.get("status"))) {
+            out.put(STATUS_BUSY).putInt((int) number(response, "retryAfterMillis"));
+            return;
+        }
+        if (!"OK".equals(response.get("status"))) {
+            out.put(STATUS_ERROR);
+            return;
+        }
+        out.put(STATUS_OK);
+        switch (opcode) {
+            case GET_CURRENT_RANGE:
+                out.putDouble(number(response, "val1")).putDouble(number(response, "val2"))
+                        .putDouble(number(response, "val3")).putDouble(number(response, "val4"));
+                break;
+            case TRAIN:
+            case TEST:
+                out.putDouble(number(response, "val1"));
+                break;
+            case TEST_BATCH:
+                double[] outputs = (double[]) response.get("outputs");
+                out.putShort((short) outputs.length);
+                for (double output : outputs) {
+                    out.putDouble(output);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Encode an error response to a request that could not be decoded.
+    static void encodeError(ByteBuffer out, byte opcode, int requestId) {
+        encodeResponse(out, opcode, requestId, Map.of("status", "Error"));
+    }
+
+    // Decode a response into the same fields as the JSON responses.
+    static HashMap<String, Object> decodeResponse(ByteBuffer in) {
+        in.order(ByteOrder.LITTLE_ENDIAN);
+        if (in.get() != MAGIC_0 || in.get() != MAGIC_1 || in.get() != VERSION) {
+            throw new IllegalArgumentException("Not a binary response");
+        }
+        byte opcode = (byte) (in.get() & ~RESPONSE);
+        HashMap<String, Object> response = new HashMap<>();
+        response.put("requestId", in.getInt());
+        byte status = in.get();
+        if (status == STATUS_BUSY) {
+            response.put("response", "Busy");
+            response.put("status", "Busy");
+            response.put("retryAfterMillis", (long) in.getInt());
+            return response;
+        }
+        if (status != STATUS_OK) {
+            response.put("response", "Error");
+            response.put("status", "Error");
+            return response;
+        }
+        response.put("response", requestType(opcode));
+        response.put("status", "OK");
+        switch (opcode) {
+            case GET_CURRENT_RANGE:
+                response.put("val1", in.getDouble());
+                response.put("val2", in.getDouble());
+                response.put("val3", in.getDouble());
+                response.put("val4", in.getDouble());
+                break;
+            case TRAIN:
+            case TEST:
+                response.put("val1", in.getDouble());
+                break;
+            case TEST_BATCH:
+                double[] outputs = new double[in.getShort() & 0xFFFF];
+                for (int o = 0; o < outputs.length; o++) {
+                    outputs[o] = in.getDouble();
+                }
+                response.put("outputs", outputs);
+                break;
+            default:
+                break;
+        }
+        return response;
+    }
+
+    // Read a numeric field, treating a missing field as 0.
+    private static double number(Map<String, Object> fields, String name) {
+        Object value = fields.get(name);
+        return value == null ? 0.0 : ((Number) value).doubleValue();
+    }
+
+    // Map the 0 used for unset int fields back to null.
+    private static Integer optional(int value) {
+        return value == 0 ? null : value;
+    }
+
+    // Read the opcode and request id of a datagram that failed to decode, so the error can be answered.
+    static Decoded header(ByteBuffer in) {
+        in.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            return new Decoded(in.get(3), in.getInt(4), null);
+        } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+            return new Decoded((byte) 0, 0, null);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package ds;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Binary checkpoints of the server's models, one file per model in a checkpoint directory.
+// A checkpoint file is little-endian and holds:
+//
+//   magic "NNCK", version                       2 ints
+//   numInputs, numHidden, numOutputs            3 ints
+//   learning rate                               1 double
+//   hidden weights, output weights              numHidden * numInputs, then numOutputs * numHidden doubles
+//   hidden biases, output biases                numHidden, then numOutputs doubles
+//   rows in the truth table                     1 int
+//   each row: inputs, then outputs              numInputs, then numOutputs doubles
+//
+// Files are written to a temporary file and then renamed, so a crash never leaves a half written
+// checkpoint. They are read back through a memory mapping, and each weight array is copied in one bulk get.
+class Checkpoints {
+
+    static final int MAGIC = 0x4B434E4E; // "NNCK" read as a little-endian int
+    static final int VERSION = 1;
+    static final String SUFFIX = ".ckpt";
+
+    private final Path directory;
+    private final long intervalSeconds;
+    // Runs the periodic checkpoints and the checkpoints of evicted models.
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "checkpoint");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Evicted models whose checkpoint has not been written yet, by id. A model requested again in that time
+    // is taken back from here, since its checkpoint on disk may be older than its weights.
+    private final ConcurrentHashMap<String, Model> unsaved = new ConcurrentHashMap<>();
+
+    Checkpoints(Path directory, long intervalSeconds) {
+        this.directory = directory;
+        this.intervalSeconds = intervalSeconds;
+    }
+
+    // Configure checkpoints from the nn.checkpoint.dir and nn.checkpoint.intervalSeconds system properties.
+    // Returns null when no directory is set, which disables checkpoints.
+    static Checkpoints fromSystemProperties() {
+        String directory = System.getProperty("nn.checkpoint.dir");
+        if (directory == null) {
+            return null;
+        }
+        return new Checkpoints(Paths.get(directory), Long.getLong("nn.checkpoint.intervalSeconds", 60L));
+    }
+
+    // Restore every checkpoint into the registry, load missing models from checkpoints on demand,
+    // save changed models every intervalSeconds and save them all when the server shuts down.
+    void start(ModelRegistry models) throws IOException {
+        Files.createDirectories(directory);
+        long started = System.nanoTime();
+        int restored = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                try {
+                    models.put(read(file));
+                    restored++;
+                } catch (IOException | RuntimeException e) {
+                    Log.warn("Skipping checkpoint " + file + ": " + e.getMessage());
+                }
+            }
+        }
+        Log.info("Restored " + restored + " models in " + (System.nanoTime() - started) / 1_000_000 + " ms");
+        models.setLoader(this::load);
+        // Evicted models are saved on the checkpoint thread, so their training is not lost.
+        models.setEvictionListener(model -> {
+            unsaved.put(model.id, model);
+            scheduler.execute(() -> {
+                saveIfChanged(model);
+                unsaved.remove(model.id, model);
+            });
+        });
+        if (intervalSeconds > 0) {
+            scheduler.scheduleWithFixedDelay(() -> saveChanged(models), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> saveChanged(models)));
+    }
+
+    // Save every held model that changed since its last checkpoint.
+    void saveChanged(ModelRegistry models) {
+        for (Model model : models.snapshot()) {
+            saveIfChanged(model);
+        }
+    }
+
+    private void saveIfChanged(Model model) {
+        if (model.updates == model.checkpointedUpdates) {
+            return;
+        }
+        try {
+            save(model);
+        } catch (IOException e) {
+            Log.error("Checkpoint of model " + model.id + " failed: " + e.getMessage());
+        }
+    }
+
+    // Write a checkpoint of the model and return its size in bytes. The model's read lock is held
+    // while its state is copied, so the checkpoint never sees a half finished training slice.
+    long save(Model model) throws IOException {
+        ByteBuffer buffer;
+        long updates;
+        model.lock.readLock().lock();
+        try {
+            updates = model.updates;
+            buffer = encode(model);
+        } finally {
+            model.lock.readLock().unlock();
+        }
+        Path file = file(model.id);
+        Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        // Saves of the same model may race; never replace a newer checkpoint with an older one.
+        synchronized (model) {
+            if (updates < model.checkpointedUpdates) {
+                Files.delete(temporary);
+            } else {
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                model.checkpointedUpdates = updates;
+            }
+        }
+        return buffer.limit();
+    }
+
+    // Load the checkpoint of a model that is not held, or return null if it has none. An evicted model
+    // that is still waiting to be saved is returned as it is instead.
+    Model load(String id) {
+        Model evicted = unsaved.get(id);
+        if (evicted != null) {
+            return evicted;
+        }
+        Path file = file(id);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            return read(file);
+        } catch (IOException | RuntimeException e) {
+            Log.warn("Cannot load checkpoint " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Delete the checkpoint of a model, for example one that moved to another node.
+    void delete(String id) {
+        try {
+            Files.deleteIfExists(file(id));
+        } catch (IOException e) {
+            Log.warn("Cannot delete checkpoint of model " + id + ": " + e.getMessage());
+        }
+    }
+
+    // The checkpoint file of a model. The id is URL encoded so that any id makes a valid file name.
+    Path file(String id) {
+        return directory.resolve(URLEncoder.encode(id, StandardCharsets.UTF_8) + SUFFIX);
+    }
+
+    private static ByteBuffer encode(Model model) {
+        DenseNetwork network = model.neuralNetwork.network;
+        int rows = model.userTrainingSets.size();
+        int doubles = 1 + network.hiddenWeights.length + network.outputWeights.length
+                + network.hiddenBiases.length + network.outputBiases.length
+                + rows * (network.numInputs + network.numOutputs);
+        ByteBuffer buffer = ByteBuffer.allocate(6 * Integer.BYTES + doubles * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION)
+                .putInt(network.numInputs).putInt(network.numHidden).putInt(network.numOutputs)
+                .putDouble(network.learningRate);
+        buffer.asDoubleBuffer().put(network.hiddenWeights).put(network.outputWeights)
+                .put(network.hiddenBiases).put(network.outputBiases);
+        buffer.position(buffer.position() + Double.BYTES * (network.hiddenWeights.length + network.outputWeights.length
+                + network.hiddenBiases.length + network.outputBiases.length));
+        buffer.putInt(rows);
+        for (Double[][] row : model.userTrainingSets) {
+            for (Double input : row[0]) {
+                buffer.putDouble(input);
+            }
+            for (Double output : row[1]) {
+                buffer.putDouble(output);
+            }
+        }
+        return buffer.flip();
+    }
+
+    // Read a checkpoint file through a read-only memory mapping.
+    static Model read(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        String id = URLDecoder.decode(name.substring(0, name.length() - SUFFIX.length()), StandardCharsets.UTF_8);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Not a version " + VERSION + " checkpoint");
+            }
+            int numInputs = buffer.getInt();
+            int numHidden = buffer.getInt();
+            int numOutputs = buffer.getInt();
+            // Check the sizes against the file before allocating, so a corrupt checkpoint cannot exhaust the heap.
+            long fits = buffer.remaining() / Double.BYTES;
+            if (numInputs < 1 || numHidden < 1 || numOutputs < 1
+                    || numInputs > fits || numHidden > fits || numOutputs > fits
+                    || (long) numHidden * (numInputs + numOutputs + 1) + numOutputs + 1 > fits) {
+                throw new IOException("Network of " + numInputs + ", " + numHidden + " and " + numOutputs
+                        + " neurons does not fit the file");
+            }
+            DenseNetwork network = new DenseNetwork(numInputs, numHidden, numOutputs);
+            network.learningRate = buffer.getDouble();
+            buffer.asDoubleBuffer().get(network.hiddenWeights).get(network.outputWeights)
+                    .get(network.hiddenBiases).get(network.outputBiases);
+            buffer.position(buffer.position() + Double.BYTES * (network.hiddenWeights.length + network.outputWeights.length
+                    + network.hiddenBiases.length + network.outputBiases.length));
+            int rows = buffer.getInt();
+            if (rows < 0 || (long) rows * (numInputs + numOutputs) > buffer.remaining() / Double.BYTES) {
+                throw new IOException("Training set of " + rows + " rows does not fit the file");
+            }
+            ArrayList<Double[][]> trainingSets = new ArrayList<Double[][]>(rows);
+            for (int r = 0; r < rows; r++) {
+                Double[] inputs = new Double[network.numInputs];
+                Double[] outputs = new Double[network.numOutputs];
+                for (int i = 0; i < inputs.length; i++) {
+                    inputs[i] = buffer.getDouble();
+                }
+                for (int o = 0; o < outputs.length; o++) {
+                    outputs[o] = buffer.getDouble();
+                }
+                trainingSets.add(new Double[][]{inputs, outputs});
+            }
+            return new Model(id, new NeuralNetwork(network), trainingSets);
+        }
+    }
+}
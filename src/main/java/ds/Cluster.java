@@ -0,0 +1,501 @@
+package ds;
+
+import com.google.gson.JsonObject;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Cluster mode: several servers share the model key space. Each node is named by its "host:port" address,
+// and owns the models whose ids hash to it on a consistent hash ring with VIRTUAL_NODES points per node.
+// A request for a model another node owns is forwarded to the owner, and the owner's response is relayed
+// back. Forwarded requests are marked, and the receiver always handles them itself, so a request is never
+// forwarded twice even while the nodes disagree about the membership.
+//
+// The membership starts from the nn.cluster.nodes system property, a comma separated list of addresses
+// that every node is given in the same form. A node started with nn.cluster.seed instead asks the seed to
+// let it join. Joins and leaves are versioned: the node that performs one sends the new membership to every
+// node, and nodes ignore memberships older than their own. After a change each node hands off the models it
+// no longer owns to their new owners. With consistent hashing only about 1/n of the models move.
+// Joins, leaves, membership updates and handoffs are only accepted from the hosts of nodes that are or
+// were members, from the seed and from this host. A new node may also ask to join from the host it names.
+class Cluster {
+
+    // Request types that work on one model and are served by its owner.
+    static final Set<String> ROUTED_TYPES = Set.of("getCurrentRange", "setCurrentRange", "train", "test", "testBatch",
+            "trainAsync", "trainStatus", "trainCancel", "checkpoint", "getWeights", "setTrainingSet", "sweep", "compile");
+
+    static final int VIRTUAL_NODES = Integer.getInteger("nn.cluster.virtualNodes", 128);
+
+    // Times a model that changes while it is being handed off is sent again before it is kept instead.
+    static final int HANDOFF_ATTEMPTS = 3;
+
+    private static final Type RESPONSE_TYPE = new TypeToken<HashMap<String, Object>>() { }.getType();
+
+    // An immutable view of the membership and its hash ring.
+    static final class Ring {
+        final List<String> nodes;
+        final long version;
+        private final TreeMap<Long, String> points = new TreeMap<>();
+
+        Ring(List<String> nodes, long version) {
+            this.nodes = List.copyOf(nodes);
+            this.version = version;
+            for (String node : this.nodes) {
+                for (int v = 0; v < VIRTUAL_NODES; v++) {
+                    points.put(hash(node + "#" + v), node);
+                }
+            }
+        }
+
+        // The node that owns a model: the first point at or after the model's hash, wrapping around.
+        String owner(String modelId) {
+            if (points.isEmpty()) {
+                return null;
+            }
+            Map.Entry<Long, String> point = points.ceilingEntry(hash(modelId));
+            return point != null ? point.getValue() : points.firstEntry().getValue();
+        }
+    }
+
+    private final NeuralNetworkServer server;
+    private final String self;
+    private volatile Ring ring;
+    private final ConcurrentHashMap<String, RequestDispatcher> peers = new ConcurrentHashMap<>();
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder forwardFailures = new LongAdder();
+    private final LongAdder handedOff = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+    // The addresses of every node that has been a member, and of the seed.
+    private final Set<InetAddress> trusted = ConcurrentHashMap.newKeySet();
+
+    Cluster(NeuralNetworkServer server, String self, List<String> nodes) {
+        this.server = server;
+        this.self = self;
+        this.ring = new Ring(nodes, 0);
+        trust(nodes);
+    }
+
+    // Configure cluster mode from the nn.cluster.nodes, nn.cluster.seed and nn.cluster.self system properties.
+    // The node's own address defaults to localhost and the port it listens on. Returns null when neither
+    // nodes nor a seed are set, which leaves cluster mode off.
+    static Cluster fromSystemProperties(NeuralNetworkServer server, int port) {
+        String nodes = System.getProperty("nn.cluster.nodes");
+        String seed = System.getProperty("nn.cluster.seed");
+        if (nodes == null && seed == null) {
+            return null;
+        }
+        String self = System.getProperty("nn.cluster.self", "localhost:" + port);
+        List<String> members = new ArrayList<>();
+        if (nodes != null) {
+            for (String node : nodes.split(",")) {
+                if (!node.isBlank()) {
+                    members.add(node.trim());
+                }
+            }
+        }
+        Cluster cluster = new Cluster(server, self, members.isEmpty() ? List.of(self) : members);
+        if (seed != null) {
+            cluster.trust(List.of(seed.trim()));
+        }
+        if (seed != null && !members.contains(self)) {
+            Thread.ofVirtual().name("cluster-join").start(() -> cluster.join(seed.trim()));
+        }
+        return cluster;
+    }
+
+    // A stable 64 bit hash of a string, the same on every node: FNV-1a followed by the SplitMix64 finalizer,
+    // which spreads similar ids such as "model1" and "model2" over the whole ring.
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+
+    // Accept cluster requests from the hosts of these nodes. Nodes whose host cannot be resolved are skipped.
+    private void trust(List<String> nodes) {
+        for (String node : nodes) {
+            int colon = node.lastIndexOf(':');
+            try {
+                trusted.add(InetAddress.getByName(colon < 0 ? node : node.substring(0, colon)));
+            } catch (IOException e) {
+                Log.warn("Cannot resolve cluster node " + node + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // True if the sender may change the membership or hand off models: a host of a current or former
+    // member, the seed or this host. If node is given, a sender on the host it names is accepted too.
+    private boolean accepts(SocketAddress sender, String node) {
+        if (!(sender instanceof InetSocketAddress from)) {
+            return false;
+        }
+        InetAddress address = from.getAddress();
+        if (address.isLoopbackAddress() || trusted.contains(address)) {
+            return true;
+        }
+        if (node != null) {
+            int colon = node.lastIndexOf(':');
+            try {
+                return colon > 0 && address.equals(InetAddress.getByName(node.substring(0, colon)));
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private HashMap<String, Object> refuse(String requestType, SocketAddress sender) {
+        refused.increment();
+        Log.warn("Error in input: " + requestType + " is only accepted from cluster members, not " + sender + ".");
+        return server.errorResponse();
+    }
+
+    // The "host:port" address of this node.
+    String self() {
+        return self;
+    }
+
+    // The node that owns the model, or null if the membership is empty.
+    String owner(String modelId) {
+        return ring.owner(modelId == null ? ModelRegistry.DEFAULT_MODEL : modelId);
+    }
+
+    // True if this node should handle the request itself rather than forward it.
+    boolean handlesLocally(String requestType, NeuralNetworkServer.Request request) {
+        if (!ROUTED_TYPES.contains(requestType) || Boolean.TRUE.equals(request.forwarded)) {
+            return true;
+        }
+        String owner = owner(request.model);
+        return owner == null || owner.equals(self);
+    }
+
+    // Forward a request to the owner of its model and return the owner's response.
+    HashMap<String, Object> forward(NeuralNetworkServer.Request request) {
+        String owner = owner(request.model);
+        forwarded.increment();
+        try {
+            RequestDispatcher peer = peer(owner);
+            int requestId = peer.nextRequestId();
+            JsonObject json = server.gson.toJsonTree(request).getAsJsonObject();
+            json.addProperty("requestId", requestId);
+            json.addProperty("forwarded", true);
+            byte[] reply = peer.request(requestId, server.gson.toJson(json).getBytes(StandardCharsets.UTF_8));
+            HashMap<String, Object> response = server.gson.fromJson(new String(reply, StandardCharsets.UTF_8), RESPONSE_TYPE);
+            // The caller adds its own client's request id.
+            response.remove("requestId");
+            // Return the batch outputs as the local handler does, so binary clients can be answered.
+            if (response.get("outputs") instanceof List<?> outputs) {
+                double[] values = new double[outputs.size()];
+                for (int o = 0; o < values.length; o++) {
+                    values[o] = ((Number) outputs.get(o)).doubleValue();
+                }
+                response.put("outputs", values);
+            }
+            return response;
+        } catch (IOException | RuntimeException e) {
+            Log.warn("Forwarding " + request.request + " to " + owner + " failed: " + e.getMessage());
+            forwardFailures.increment();
+            return server.errorResponse();
+        }
+    }
+
+    // The dispatcher that sends requests to a peer node.
+    private RequestDispatcher peer(String node) throws IOException {
+        RequestDispatcher peer = peers.get(node);
+        if (peer != null) {
+            return peer;
+        }
+        int colon = node.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IOException("Node " + node + " is not host:port");
+        }
+        RequestDispatcher created = RequestDispatcher.fromSystemProperties(
+                InetAddress.getByName(node.substring(0, colon)), Integer.parseInt(node.substring(colon + 1)));
+        RequestDispatcher raced = peers.putIfAbsent(node, created);
+        if (raced != null) {
+            created.close();
+            return raced;
+        }
+        return created;
+    }
+
+    // Send a request to a peer without waiting for the reply. Failures are logged.
+    private void notify(String node, HashMap<String, Object> payload) {
+        try {
+            RequestDispatcher peer = peer(node);
+            int requestId = peer.nextRequestId();
+            payload.put("requestId", requestId);
+            peer.send(requestId, server.gson.toJson(payload).getBytes(StandardCharsets.UTF_8))
+                    .exceptionally(e -> {
+                        Log.warn("Cluster update to " + node + " failed: " + e.getMessage());
+                        return null;
+                    });
+        } catch (IOException e) {
+            Log.warn("Cluster update to " + node + " failed: " + e.getMessage());
+        }
+    }
+
+    // Ask the seed node to add this node to the cluster. The seed answers by sending the new membership.
+    private void join(String seed) {
+        HashMap<String, Object> payload = new HashMap<>();
+        payload.put("request", "clusterJoin");
+        payload.put("node", self);
+        try {
+            RequestDispatcher peer = peer(seed);
+            int requestId = peer.nextRequestId();
+            payload.put("requestId", requestId);
+            peer.request(requestId, server.gson.toJson(payload).getBytes(StandardCharsets.UTF_8));
+            Log.info("Joined the cluster through " + seed);
+        } catch (IOException e) {
+            Log.error("Cannot join the cluster through " + seed + ": " + e.getMessage());
+        }
+    }
+
+    // Add a node to the membership, or remove one, and send the result to every node old and new.
+    synchronized HashMap<String, Object> changeMembership(String node, boolean join, SocketAddress sender) {
+        if (node == null || node.isBlank()) {
+            return server.errorResponse();
+        }
+        if (!accepts(sender, join ? node : null)) {
+            return refuse(join ? "clusterJoin" : "clusterLeave", sender);
+        }
+        LinkedHashSet<String> nodes = new LinkedHashSet<>(ring.nodes);
+        boolean changed = join ? nodes.add(node) : nodes.remove(node);
+        if (changed) {
+            Ring previous = ring;
+            apply(new Ring(new ArrayList<>(nodes), previous.version + 1));
+            LinkedHashSet<String> recipients = new LinkedHashSet<>(previous.nodes);
+            recipients.addAll(nodes);
+            recipients.remove(self);
+            for (String recipient : recipients) {
+                notify(recipient, membershipPayload());
+            }
+        }
+        return status(join ? "clusterJoin" : "clusterLeave");
+    }
+
+    // Adopt a membership sent by another node if it is newer than this node's. Two nodes that change the
+    // membership at once both number their result with the next version, so between memberships of the same
+    // version every node keeps the one whose node list sorts last, and all nodes settle on the same one.
+    synchronized HashMap<String, Object> update(String[] nodes, long version, SocketAddress sender) {
+        if (!accepts(sender, null)) {
+            return refuse("clusterUpdate", sender);
+        }
+        if (nodes != null && (version > ring.version
+                || version == ring.version && String.join(",", nodes).compareTo(String.join(",", ring.nodes)) > 0)) {
+            apply(new Ring(Arrays.asList(nodes), version));
+        }
+        return status("clusterUpdate");
+    }
+
+    // Switch to a new ring, then hand off the models this node no longer owns in the background.
+    private void apply(Ring next) {
+        ring = next;
+        trust(next.nodes);
+        Log.info("Cluster membership version " + next.version + ": " + next.nodes);
+        Thread.ofVirtual().name("cluster-rebalance").start(this::rebalance);
+    }
+
+    // Send every held model that another node now owns to that node, and drop it here once it is accepted.
+    // Requests for a model that arrive at its new owner during the handoff see a new model, which the
+    // handed off state then replaces.
+    private void rebalance() {
+        int moved = 0;
+        for (Model model : server.models.snapshot()) {
+            String owner = owner(model.id);
+            if (owner == null || owner.equals(self)) {
+                continue;
+            }
+            if (handOff(model, owner)) {
+                moved++;
+            }
+        }
+        if (moved > 0) {
+            Log.info("Handed off " + moved + " models");
+        }
+    }
+
+    // The model is copied under the read lock and sent without holding any lock, so a peer that does not
+    // answer never holds up the model's requests. It is removed only if it did not change while it was
+    // being sent; otherwise the newer state is sent again, up to HANDOFF_ATTEMPTS times, and a model that
+    // keeps changing, for example under a background training job, stays here.
+    private boolean handOff(Model model, String owner) {
+        for (int attempt = 0; attempt < HANDOFF_ATTEMPTS; attempt++) {
+            HashMap<String, Object> payload;
+            long updates;
+            model.lock.readLock().lock();
+            try {
+                updates = model.updates;
+                payload = handoffPayload(model);
+            } finally {
+                model.lock.readLock().unlock();
+            }
+            try {
+                RequestDispatcher peer = peer(owner);
+                int requestId = peer.nextRequestId();
+                payload.put("requestId", requestId);
+                byte[] reply = peer.request(requestId, server.gson.toJson(payload).getBytes(StandardCharsets.UTF_8));
+                if (!new String(reply, StandardCharsets.UTF_8).contains("\"status\":\"OK\"")) {
+                    throw new IOException("refused");
+                }
+            } catch (IOException e) {
+                Log.warn("Handing off model " + model.id + " to " + owner + " failed: " + e.getMessage());
+                return false;
+            }
+            model.lock.writeLock().lock();
+            try {
+                if (model.updates == updates) {
+                    server.models.remove(model);
+                    if (server.checkpoints != null) {
+                        // A stale checkpoint must not bring the model back if this node owns it again later.
+                        server.checkpoints.delete(model.id);
+                    }
+                    handedOff.increment();
+                    return true;
+                }
+            } finally {
+                model.lock.writeLock().unlock();
+            }
+            Log.info("Model " + model.id + " changed while it was handed off, sending it again");
+        }
+        Log.warn("Model " + model.id + " kept changing while it was handed off to " + owner + ", keeping it");
+        return false;
+    }
+
+    // A copy of the model's network and training set, as a clusterHandoff request. Called under the read lock.
+    private HashMap<String, Object> handoffPayload(Model model) {
+        DenseNetwork network = model.neuralNetwork.network;
+        ArrayList<Double[][]> trainingSets = model.userTrainingSets;
+        double[][] inputs = new double[trainingSets.size()][];
+        double[][] outputs = new double[trainingSets.size()][];
+        for (int r = 0; r < inputs.length; r++) {
+            inputs[r] = NeuralNetwork.toArray(Arrays.asList(trainingSets.get(r)[0]));
+            outputs[r] = NeuralNetwork.toArray(Arrays.asList(trainingSets.get(r)[1]));
+        }
+        HashMap<String, Object> payload = new HashMap<>();
+        payload.put("request", "clusterHandoff");
+        payload.put("model", model.id);
+        payload.put("numInputs", network.numInputs);
+        payload.put("numHidden", network.numHidden);
+        payload.put("numOutputs", network.numOutputs);
+        payload.put("learningRate", network.learningRate);
+        payload.put("hiddenWeights", network.hiddenWeights.clone());
+        payload.put("outputWeights", network.outputWeights.clone());
+        payload.put("hiddenBiases", network.hiddenBiases.clone());
+        payload.put("outputBiases", network.outputBiases.clone());
+        payload.put("inputs", inputs);
+        payload.put("outputs", outputs);
+        return payload;
+    }
+
+    // Install a model handed off by its previous owner, replacing any model held under its id.
+    HashMap<String, Object> receive(NeuralNetworkServer.ModelHandoffRequest request, SocketAddress sender) {
+        if (!accepts(sender, null)) {
+            return refuse("clusterHandoff", sender);
+        }
+        if (request.model == null || request.inputs == null || request.outputs == null
+                || request.inputs.length != request.outputs.length || request.hiddenWeights == null
+                || request.outputWeights == null || request.hiddenBiases == null || request.outputBiases == null) {
+            return server.errorResponse();
+        }
+        // The shape is checked as setTrainingSet checks it, before any array is sized from it.
+        if (request.numInputs < 1 || request.numOutputs < 1
+                || request.numHidden < 1 || request.numHidden > NeuralNetworkServer.MAX_HIDDEN) {
+            Log.warn("Error in input: a handed off network needs inputs, outputs and 1 to "
+                    + NeuralNetworkServer.MAX_HIDDEN + " hidden neurons.");
+            return server.errorResponse();
+        }
+        if (request.hiddenWeights.length != (long) request.numHidden * request.numInputs
+                || request.outputWeights.length != (long) request.numOutputs * request.numHidden
+                || request.hiddenBiases.length != request.numHidden
+                || request.outputBiases.length != request.numOutputs) {
+            Log.warn("Error in input: the handed off weights do not match the network's shape.");
+            return server.errorResponse();
+        }
+        if (request.inputs.length == 0) {
+            Log.warn("Error in input: a handed off model needs a training set.");
+            return server.errorResponse();
+        }
+        for (int r = 0; r < request.inputs.length; r++) {
+            if (request.inputs[r] == null || request.outputs[r] == null
+                    || request.inputs[r].length != request.numInputs || request.outputs[r].length != request.numOutputs) {
+                Log.warn("Error in input: row " + r + " of the handed off training set does not fit the network.");
+                return server.errorResponse();
+            }
+        }
+        DenseNetwork network = new DenseNetwork(request.numInputs, request.numHidden, request.numOutputs);
+        network.learningRate = request.learningRate;
+        System.arraycopy(request.hiddenWeights, 0, network.hiddenWeights, 0, network.hiddenWeights.length);
+        System.arraycopy(request.outputWeights, 0, network.outputWeights, 0, network.outputWeights.length);
+        System.arraycopy(request.hiddenBiases, 0, network.hiddenBiases, 0, network.hiddenBiases.length);
+        System.arraycopy(request.outputBiases, 0, network.outputBiases, 0, network.outputBiases.length);
+        ArrayList<Double[][]> trainingSets = new ArrayList<Double[][]>(request.inputs.length);
+        for (int r = 0; r < request.inputs.length; r++) {
+            Double[] inputs = new Double[request.inputs[r].length];
+            Double[] outputs = new Double[request.outputs[r].length];
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i] = request.inputs[r][i];
+            }
+            for (int o = 0; o < outputs.length; o++) {
+                outputs[o] = request.outputs[r][o];
+            }
+            trainingSets.add(new Double[][]{inputs, outputs});
+        }
+        Model model = new Model(request.model, new NeuralNetwork(network), trainingSets);
+        // Changed since any checkpoint of this node, so it is saved here.
+        model.markUpdated();
+        server.models.put(model);
+        received.increment();
+        Log.info("Received model " + request.model);
+        HashMap<String, Object> response = new HashMap<>();
+        response.put("response", "clusterHandoff");
+        response.put("status", "OK");
+        return response;
+    }
+
+    private HashMap<String, Object> membershipPayload() {
+        HashMap<String, Object> payload = new HashMap<>();
+        payload.put("request", "clusterUpdate");
+        payload.put("nodes", ring.nodes);
+        payload.put("version", ring.version);
+        return payload;
+    }
+
+    // The membership as this node sees it and the forwarding and handoff counters.
+    HashMap<String, Object> status(String responseType) {
+        Ring current = ring;
+        HashMap<String, Object> response = new HashMap<>();
+        response.put("response", responseType);
+        response.put("status", "OK");
+        response.put("self", self);
+        response.put("nodes", current.nodes);
+        response.put("version", current.version);
+        response.put("forwarded", forwarded.sum());
+        response.put("forwardFailures", forwardFailures.sum());
+        response.put("handedOff", handedOff.sum());
+        response.put("received", received.sum());
+        response.put("refused", refused.sum());
+        return response;
+    }
+}
@@ -0,0 +1,299 @@
+package ds;
+
+import java.util.HashMap;
+import java.util.SplittableRandom;
+
+// An inference-only form of a trained network, made by the compile request and used by test and
+// testBatch until the model publishes new weights. It comes in three modes:
+//
+//   table    the outputs for every combination of 0 and 1 inputs, computed once from the double
+//            network, so a truth table query is one array read. Other inputs use the float32 kernel.
+//   float32  the weights as one flat float array, with the sigmoid read from a table instead of Math.exp.
+//   int8     the weights quantized to bytes with one scale per neuron, a quarter of the float32 size.
+//
+// All modes are immutable, so any number of threads may evaluate at once. compile measures how far
+// the compiled outputs are from the double network's and reports it with the mode.
+class CompiledNetwork {
+
+    // Networks with more inputs than this are not tabulated, since the table doubles with every input.
+    static final int MAX_TABLE_INPUTS = 16;
+
+    // The sigmoid sampled every 1/SIGMOID_STEPS on [-SIGMOID_RANGE, SIGMOID_RANGE] and interpolated
+    // linearly in between, which is within 1e-6 of the exact value. Beyond the range it is 0 or 1.
+    private static final int SIGMOID_RANGE = 16;
+    private static final int SIGMOID_STEPS = 128;
+    private static final float[] SIGMOID = new float[2 * SIGMOID_RANGE * SIGMOID_STEPS + 2];
+
+    static {
+        for (int i = 0; i < SIGMOID.length; i++) {
+            SIGMOID[i] = (float) DenseNetwork.squash((double) i / SIGMOID_STEPS - SIGMOID_RANGE);
+        }
+    }
+
+    enum Mode { TABLE, FLOAT32, INT8 }
+
+    final Mode mode;
+    // The published version the network was compiled from. It is served only while that version is current.
+    final long version;
+    final int numInputs;
+    final int numHidden;
+    final int numOutputs;
+    // TABLE: numOutputs outputs for each combination of inputs, indexed by the inputs as bits, the first
+    // input highest.
+    private final double[] table;
+    // FLOAT32, and the fallback of TABLE: the weights row by row as in DenseNetwork.
+    private final float[] hiddenWeights;
+    private final float[] outputWeights;
+    // INT8: the quantized weights row by row, and the scale that turns each row back into floats.
+    private final byte[] hiddenQuantized;
+    private final byte[] outputQuantized;
+    private final float[] hiddenScales;
+    private final float[] outputScales;
+    private final float[] hiddenBiases;
+    private final float[] outputBiases;
+
+    private CompiledNetwork(Mode mode, long version, DenseNetwork network) {
+        this.mode = mode;
+        this.version = version;
+        numInputs = network.numInputs;
+        numHidden = network.numHidden;
+        numOutputs = network.numOutputs;
+        hiddenBiases = toFloats(network.hiddenBiases);
+        outputBiases = toFloats(network.outputBiases);
+        if (mode == Mode.INT8) {
+            hiddenQuantized = new byte[network.hiddenWeights.length];
+            outputQuantized = new byte[network.outputWeights.length];
+            hiddenScales = quantize(network.hiddenWeights, numInputs, hiddenQuantized);
+            outputScales = quantize(network.outputWeights, numHidden, outputQuantized);
+            hiddenWeights = null;
+            outputWeights = null;
+        } else {
+            hiddenWeights = toFloats(network.hiddenWeights);
+            outputWeights = toFloats(network.outputWeights);
+            hiddenQuantized = null;
+            outputQuantized = null;
+            hiddenScales = null;
+            outputScales = null;
+        }
+        table = mode == Mode.TABLE ? tabulate(network) : null;
+    }
+
+    // Compile the published weights in the given mode. TABLE needs at most MAX_TABLE_INPUTS inputs.
+    static CompiledNetwork compile(Model.Published published, Mode mode) {
+        return new CompiledNetwork(mode, published.version(), published.network().network);
+    }
+
+    // True if every input of the training set is 0 or 1, so it can be answered from a table.
+    static boolean isDiscrete(double[][] inputs) {
+        if (inputs.length == 0 || inputs[0].length > MAX_TABLE_INPUTS) {
+            return false;
+        }
+        for (double[] row : inputs) {
+            for (double input : row) {
+                if (input != 0.0 && input != 1.0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static float[] toFloats(double[] values) {
+        float[] floats = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            floats[i] = (float) values[i];
+        }
+        return floats;
+    }
+
+    // Quantize each row of rowLength weights symmetrically to [-127, 127] and return the row scales.
+    private static float[] quantize(double[] weights, int rowLength, byte[] quantized) {
+        float[] scales = new float[weights.length / rowLength];
+        for (int row = 0; row < scales.length; row++) {
+            double largest = 0.0;
+            for (int w = row * rowLength; w < (row + 1) * rowLength; w++) {
+                largest = Math.max(largest, Math.abs(weights[w]));
+            }
+            double scale = largest > 0 ? largest / 127.0 : 1.0;
+            scales[row] = (float) scale;
+            for (int w = row * rowLength; w < (row + 1) * rowLength; w++) {
+                quantized[w] = (byte) Math.round(weights[w] / scale);
+            }
+        }
+        return scales;
+    }
+
+    private double[] tabulate(DenseNetwork network) {
+        double[] outputs = new double[(1 << numInputs) * numOutputs];
+        double[] inputs = new double[numInputs];
+        DenseNetwork.Activations activations = network.newActivations();
+        for (int index = 0; index < 1 << numInputs; index++) {
+            for (int i = 0; i < numInputs; i++) {
+                inputs[i] = (index >> (numInputs - 1 - i)) & 1;
+            }
+            System.arraycopy(network.feedForward(inputs, activations), 0, outputs, index * numOutputs, numOutputs);
+        }
+        return outputs;
+    }
+
+    private static float sigmoid(float x) {
+        float position = (x + SIGMOID_RANGE) * SIGMOID_STEPS;
+        if (position <= 0) {
+            return 0f;
+        }
+        if (position >= SIGMOID.length - 2) {
+            return 1f;
+        }
+        int index = (int) position;
+        float fraction = position - index;
+        return SIGMOID[index] + fraction * (SIGMOID[index + 1] - SIGMOID[index]);
+    }
+
+    // The table index of the inputs, or -1 if an input is neither 0 nor 1.
+    private int tableIndex(double[] inputs, int offset) {
+        int index = 0;
+        for (int i = 0; i < numInputs; i++) {
+            double input = inputs[offset + i];
+            if (input == 1.0) {
+                index = index << 1 | 1;
+            } else if (input == 0.0) {
+                index <<= 1;
+            } else {
+                return -1;
+            }
+        }
+        return index;
+    }
+
+    // Compute the outputs of numInputs inputs from offset into outputs from outputOffset.
+    private void evaluate(double[] inputs, int offset, float[] hidden, double[] outputs, int outputOffset) {
+        if (table != null) {
+            int index = tableIndex(inputs, offset);
+            if (index >= 0) {
+                System.arraycopy(table, index * numOutputs, outputs, outputOffset, numOutputs);
+                return;
+            }
+        }
+        for (int h = 0; h < numHidden; h++) {
+            float sum = 0f;
+            int row = h * numInputs;
+            if (hiddenQuantized != null) {
+                for (int i = 0; i < numInputs; i++) {
+                    sum += hiddenQuantized[row + i] * (float) inputs[offset + i];
+                }
+                sum *= hiddenScales[h];
+            } else {
+                for (int i = 0; i < numInputs; i++) {
+                    sum += hiddenWeights[row + i] * (float) inputs[offset + i];
+                }
+            }
+            hidden[h] = sigmoid(sum + hiddenBiases[h]);
+        }
+        for (int o = 0; o < numOutputs; o++) {
+            float sum = 0f;
+            int row = o * numHidden;
+            if (outputQuantized != null) {
+                for (int h = 0; h < numHidden; h++) {
+                    sum += outputQuantized[row + h] * hidden[h];
+                }
+                sum *= outputScales[o];
+            } else {
+                for (int h = 0; h < numHidden; h++) {
+                    sum += outputWeights[row + h] * hidden[h];
+                }
+            }
+            outputs[outputOffset + o] = sigmoid(sum + outputBiases[o]);
+        }
+    }
+
+    // The outputs for one row of inputs.
+    double[] evaluate(double[] inputs) {
+        double[] outputs = new double[numOutputs];
+        evaluate(inputs, 0, new float[numHidden], outputs, 0);
+        return outputs;
+    }
+
+    // The outputs for a batch of rows, numOutputs values per row, as NeuralNetwork.evaluateBatch returns them.
+    double[] evaluateBatch(double[][] inputs) {
+        double[] outputs = new double[inputs.length * numOutputs];
+        float[] hidden = new float[numHidden];
+        for (int r = 0; r < inputs.length; r++) {
+            evaluate(inputs[r], 0, hidden, outputs, r * numOutputs);
+        }
+        return outputs;
+    }
+
+    // The bytes of the weights, biases, scales and table.
+    long bytes() {
+        long bytes = 4L * (hiddenBiases.length + outputBiases.length);
+        if (hiddenQuantized != null) {
+            bytes += hiddenQuantized.length + outputQuantized.length + 4L * (hiddenScales.length + outputScales.length);
+        } else {
+            bytes += 4L * (hiddenWeights.length + outputWeights.length);
+        }
+        return table == null ? bytes : bytes + 8L * table.length;
+    }
+
+    // Compare the compiled outputs with the double network's on the training rows and on samples drawn
+    // uniformly from the range of the training inputs, and time both forms on the same rows.
+    HashMap<String, Object> accuracy(NeuralNetwork network, double[][] trainingInputs, int samples, long seed) {
+        double[] low = trainingInputs[0].clone();
+        double[] high = trainingInputs[0].clone();
+        for (double[] row : trainingInputs) {
+            for (int i = 0; i < numInputs; i++) {
+                low[i] = Math.min(low[i], row[i]);
+                high[i] = Math.max(high[i], row[i]);
+            }
+        }
+        SplittableRandom random = new SplittableRandom(seed);
+        double[][] rows = new double[trainingInputs.length + samples][];
+        System.arraycopy(trainingInputs, 0, rows, 0, trainingInputs.length);
+        for (int r = trainingInputs.length; r < rows.length; r++) {
+            rows[r] = new double[numInputs];
+            for (int i = 0; i < numInputs; i++) {
+                rows[r][i] = low[i] + random.nextDouble() * (high[i] - low[i]);
+            }
+        }
+        double largest = 0.0;
+        double total = 0.0;
+        double largestTraining = 0.0;
+        for (int r = 0; r < rows.length; r++) {
+            double[] exact = network.evaluate(rows[r]);
+            double[] compiled = evaluate(rows[r]);
+            for (int o = 0; o < numOutputs; o++) {
+                double delta = Math.abs(exact[o] - compiled[o]);
+                largest = Math.max(largest, delta);
+                total += delta;
+                if (r < trainingInputs.length) {
+                    largestTraining = Math.max(largestTraining, delta);
+                }
+            }
+        }
+        HashMap<String, Object> accuracy = new HashMap<>();
+        accuracy.put("rows", rows.length);
+        accuracy.put("maxAbsError", largest);
+        accuracy.put("meanAbsError", total / ((double) rows.length * numOutputs));
+        accuracy.put("maxAbsErrorTraining", largestTraining);
+        // Time each form twice and report the second run, after the JIT compiler has seen the code.
+        nanosPerRow(rows, true, network);
+        nanosPerRow(rows, false, network);
+        accuracy.put("nanosPerRow", nanosPerRow(rows, true, network));
+        accuracy.put("nanosPerRowDouble", nanosPerRow(rows, false, network));
+        return accuracy;
+    }
+
+    // The mean time of one evaluation over the rows, repeated enough for a stable figure.
+    private double nanosPerRow(double[][] rows, boolean compiled, NeuralNetwork network) {
+        int repeats = Math.max(1, 20000 / rows.length);
+        double sink = 0.0;
+        long started = System.nanoTime();
+        for (int repeat = 0; repeat < repeats; repeat++) {
+            for (double[] row : rows) {
+                sink += compiled ? evaluate(row)[0] : network.evaluate(row)[0];
+            }
+        }
+        long elapsed = System.nanoTime() - started;
+        // Use the outputs so the evaluations cannot be optimized away.
+        return sink == -1.0 ? 0.0 : (double) elapsed / ((long) repeats * rows.length);
+    }
+}
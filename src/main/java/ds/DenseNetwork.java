@@ -0,0 +1,216 @@
+package ds;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// A dense version of the two layer network in NeuralNetworkServer.
+// Each layer keeps its weights, biases, outputs and error deltas in preallocated double[] arrays,
+// so feedForward and train run without boxing or allocating anything per step.
+// The mathematics are the same as in Neuron and NeuralNetwork: sigmoid activations,
+// squared error, and a bias per neuron that is set once and not trained.
+// The inner loops run on the Kernels backend chosen at startup.
+class DenseNetwork {
+
+    private static final Kernels KERNELS = Kernels.INSTANCE;
+
+    // The learning rate is chosen experimentally. Typically, it is set between 0 and 1.
+    double learningRate = 0.5;
+
+    final int numInputs;
+    final int numHidden;
+    final int numOutputs;
+
+    // Weights are stored row by row: the weights of hidden neuron h start at h * numInputs,
+    // the weights of output neuron o start at o * numHidden.
+    final double[] hiddenWeights;
+    final double[] outputWeights;
+    final double[] hiddenBiases;
+    final double[] outputBiases;
+
+    // The activations used by the single threaded feedForward and train calls.
+    private final Activations activations;
+
+    // The per pass state of the network: the layer outputs and the partial derivatives of the
+    // error with respect to each neuron's total net input. Callers that run passes on several
+    // threads give each thread its own Activations.
+    static final class Activations {
+        final double[] hiddenOutputs;
+        final double[] outputs;
+        final double[] hiddenDeltas;
+        final double[] outputDeltas;
+
+        Activations(int numHidden, int numOutputs) {
+            hiddenOutputs = new double[numHidden];
+            outputs = new double[numOutputs];
+            hiddenDeltas = new double[numHidden];
+            outputDeltas = new double[numOutputs];
+        }
+    }
+
+    // Construct a network with all weights and biases 0, to be filled in by the caller.
+    DenseNetwork(int numInputs, int numHidden, int numOutputs) {
+        this.numInputs = numInputs;
+        this.numHidden = numHidden;
+        this.numOutputs = numOutputs;
+        hiddenWeights = new double[numHidden * numInputs];
+        outputWeights = new double[numOutputs * numHidden];
+        hiddenBiases = new double[numHidden];
+        outputBiases = new double[numOutputs];
+        activations = newActivations();
+    }
+
+    // Construct a network with random weights in [0, 1) and one random bias per layer,
+    // the same way NeuronLayer and NeuralNetwork initialise themselves.
+    DenseNetwork(int numInputs, int numHidden, int numOutputs, Random random) {
+        this(numInputs, numHidden, numOutputs);
+        for (int w = 0; w < hiddenWeights.length; w++) {
+            hiddenWeights[w] = random.nextDouble();
+        }
+        for (int w = 0; w < outputWeights.length; w++) {
+            outputWeights[w] = random.nextDouble();
+        }
+        Arrays.fill(hiddenBiases, random.nextDouble());
+        Arrays.fill(outputBiases, random.nextDouble());
+    }
+
+    // Return a copy of the weights, biases and learning rate with its own activations.
+    DenseNetwork copy() {
+        DenseNetwork copy = new DenseNetwork(numInputs, numHidden, numOutputs);
+        copy.learningRate = learningRate;
+        System.arraycopy(hiddenWeights, 0, copy.hiddenWeights, 0, hiddenWeights.length);
+        System.arraycopy(outputWeights, 0, copy.outputWeights, 0, outputWeights.length);
+        System.arraycopy(hiddenBiases, 0, copy.hiddenBiases, 0, hiddenBiases.length);
+        System.arraycopy(outputBiases, 0, copy.outputBiases, 0, outputBiases.length);
+        return copy;
+    }
+
+    // Create a fresh set of per pass buffers sized for this network.
+    Activations newActivations() {
+        return new Activations(numHidden, numOutputs);
+    }
+
+    // This is the activation function, returning a value between 0 and 1.
+    static double squash(double totalNetInput) {
+        return 1.0 / (1.0 + Math.exp(-totalNetInput));
+    }
+
+    // Feed the inputs through both layers. The returned array is owned by the network
+    // and is overwritten by the next call.
+    double[] feedForward(double[] inputs) {
+        return feedForward(inputs, activations);
+    }
+
+    // Feed the inputs through both layers using the given buffers and return the output layer.
+    double[] feedForward(double[] inputs, Activations a) {
+        for (int h = 0; h < numHidden; h++) {
+            a.hiddenOutputs[h] = hiddenBiases[h] + KERNELS.dot(inputs, 0, hiddenWeights, h * numInputs, numInputs);
+        }
+        KERNELS.squash(a.hiddenOutputs, 0, numHidden);
+        for (int o = 0; o < numOutputs; o++) {
+            a.outputs[o] = outputBiases[o] + KERNELS.dot(a.hiddenOutputs, 0, outputWeights, o * numHidden, numHidden);
+        }
+        KERNELS.squash(a.outputs, 0, numOutputs);
+        return a.outputs;
+    }
+
+    // Feed a batch of rows through both layers as two matrix products.
+    // inputs holds rows * numInputs values row by row; hiddenOutputs must hold rows * numHidden values
+    // and outputs rows * numOutputs values. Each weight row is loaded once and applied to the whole batch.
+    // Only the weights are read, so several threads may run batches at once with their own arrays.
+    void feedForwardBatch(double[] inputs, int rows, double[] hiddenOutputs, double[] outputs) {
+        for (int h = 0; h < numHidden; h++) {
+            int weightRow = h * numInputs;
+            for (int r = 0; r < rows; r++) {
+                hiddenOutputs[r * numHidden + h] = hiddenBiases[h]
+                        + KERNELS.dot(inputs, r * numInputs, hiddenWeights, weightRow, numInputs);
+            }
+        }
+        KERNELS.squash(hiddenOutputs, 0, rows * numHidden);
+        for (int o = 0; o < numOutputs; o++) {
+            int weightRow = o * numHidden;
+            for (int r = 0; r < rows; r++) {
+                outputs[r * numOutputs + o] = outputBiases[o]
+                        + KERNELS.dot(hiddenOutputs, r * numHidden, outputWeights, weightRow, numHidden);
+            }
+        }
+        KERNELS.squash(outputs, 0, rows * numOutputs);
+    }
+
+    // Compute the error deltas of both layers for the last feedForward into these buffers.
+    void backPropagate(double[] targets, Activations a) {
+        for (int o = 0; o < numOutputs; o++) {
+            double out = a.outputs[o];
+            a.outputDeltas[o] = -(targets[o] - out) * out * (1.0 - out);
+        }
+        // Sum the error flowing back to each hidden neuron one output row at a time.
+        Arrays.fill(a.hiddenDeltas, 0.0);
+        for (int o = 0; o < numOutputs; o++) {
+            KERNELS.axpy(a.outputDeltas[o], outputWeights, o * numHidden, a.hiddenDeltas, 0, numHidden);
+        }
+        for (int h = 0; h < numHidden; h++) {
+            double out = a.hiddenOutputs[h];
+            a.hiddenDeltas[h] *= out * (1.0 - out);
+        }
+    }
+
+    // Perform one stochastic gradient descent step on a single training row.
+    // Returns the squared error of the row before the step, which comes free with the forward pass.
+    double train(double[] inputs, double[] targets) {
+        return train(inputs, targets, activations);
+    }
+
+    // Perform one stochastic gradient descent step using the given buffers and return the row's error.
+    // The weights are updated in place without locking, so concurrent callers race on them (see HogwildTrainer).
+    double train(double[] inputs, double[] targets, Activations a) {
+        feedForward(inputs, a);
+        double error = 0.0;
+        for (int o = 0; o < numOutputs; o++) {
+            double diff = targets[o] - a.outputs[o];
+            error += 0.5 * diff * diff;
+        }
+        backPropagate(targets, a);
+        for (int o = 0; o < numOutputs; o++) {
+            KERNELS.axpy(-learningRate * a.outputDeltas[o], a.hiddenOutputs, 0,
+                    outputWeights, o * numHidden, numHidden);
+        }
+        for (int h = 0; h < numHidden; h++) {
+            KERNELS.axpy(-learningRate * a.hiddenDeltas[h], inputs, 0, hiddenWeights, h * numInputs, numInputs);
+        }
+        return error;
+    }
+
+    // Add the error gradient of one training row to the given gradient arrays.
+    // The arrays are laid out like hiddenWeights and outputWeights. Only the weights are read,
+    // so several threads can accumulate gradients at once with their own Activations.
+    void accumulateGradients(double[] inputs, double[] targets, Activations a,
+                             double[] hiddenGradients, double[] outputGradients) {
+        feedForward(inputs, a);
+        backPropagate(targets, a);
+        for (int o = 0; o < numOutputs; o++) {
+            KERNELS.axpy(a.outputDeltas[o], a.hiddenOutputs, 0, outputGradients, o * numHidden, numHidden);
+        }
+        for (int h = 0; h < numHidden; h++) {
+            KERNELS.axpy(a.hiddenDeltas[h], inputs, 0, hiddenGradients, h * numInputs, numInputs);
+        }
+    }
+
+    // Take one gradient descent step along the given gradients, scaled by the learning rate and scale.
+    void applyGradients(double[] hiddenGradients, double[] outputGradients, double scale) {
+        double step = learningRate * scale;
+        KERNELS.axpy(-step, outputGradients, 0, outputWeights, 0, outputWeights.length);
+        KERNELS.axpy(-step, hiddenGradients, 0, hiddenWeights, 0, hiddenWeights.length);
+    }
+
+    // Perform a feed forward for each training row and total the squared error.
+    double calculateTotalError(double[][] inputs, double[][] targets) {
+        double totalError = 0.0;
+        for (int t = 0; t < inputs.length; t++) {
+            double[] outputs = feedForward(inputs[t], activations);
+            for (int o = 0; o < numOutputs; o++) {
+                double diff = targets[t][o] - outputs[o];
+                totalError += 0.5 * diff * diff;
+            }
+        }
+        return totalError;
+    }
+}
@@ -0,0 +1,106 @@
+package ds;
+
+import java.net.SocketAddress;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Remembers the responses to recent requests by sender and request id, so that a request retransmitted
+// by a client whose reply was lost is answered again without being performed twice. This matters for
+// train and setCurrentRange, which change the model.
+//
+// The first copy of a request registers a future for its response and performs it; copies that arrive
+// while it runs wait for that future. Entries are dropped once they are older than maxAgeNanos or the
+// cache holds more than maxEntries, oldest first. The cache takes no locks, so request threads never
+// queue behind each other here.
+class DuplicateCache<V> {
+
+    private record Key(SocketAddress sender, long requestId) {
+    }
+
+    private record Entry<V>(CompletableFuture<V> response, long createdNanos) {
+    }
+
+    private final int maxEntries;
+    private final long maxAgeNanos;
+    private final ConcurrentHashMap<Key, Entry<V>> entries = new ConcurrentHashMap<>();
+    // The keys in the order they were added, so the oldest entries can be found.
+    private final Queue<Key> order = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    DuplicateCache(int maxEntries, long maxAgeNanos) {
+        this.maxEntries = maxEntries;
+        this.maxAgeNanos = maxAgeNanos;
+    }
+
+    // Configure a cache from the nn.dedup.max and nn.dedup.seconds system properties.
+    static <V> DuplicateCache<V> fromSystemProperties() {
+        return new DuplicateCache<>(Integer.getInteger("nn.dedup.max", 10000),
+                Long.getLong("nn.dedup.seconds", 30L) * 1_000_000_000L);
+    }
+
+    // Register the future of the response to a request. Returns null if this is the first copy of the
+    // request, and the caller must then complete the future. Otherwise returns the future of the first copy.
+    CompletableFuture<V> putIfAbsent(SocketAddress sender, long requestId, CompletableFuture<V> response) {
+        Key key = new Key(sender, requestId);
+        long now = System.nanoTime();
+        Entry<V> earlier = entries.putIfAbsent(key, new Entry<>(response, now));
+        if (earlier != null) {
+            return earlier.response();
+        }
+        order.add(key);
+        size.incrementAndGet();
+        expire(now);
+        return null;
+    }
+
+    // The future of the response to a request, or null if no copy of it has been registered.
+    CompletableFuture<V> get(SocketAddress sender, long requestId) {
+        Entry<V> entry = entries.get(new Key(sender, requestId));
+        return entry == null ? null : entry.response();
+    }
+
+    // Forget the future of a request whose first copy failed without a response, so a retransmission is
+    // performed again instead of waiting for it.
+    void remove(SocketAddress sender, long requestId, CompletableFuture<V> response) {
+        Key key = new Key(sender, requestId);
+        Entry<V> entry = entries.get(key);
+        if (entry != null && entry.response() == response && entries.remove(key, entry)) {
+            size.decrementAndGet();
+        }
+    }
+
+    // Wait for the response of the first copy of a request, for at most as long as an entry is kept.
+    // Returns null if the first copy failed or is still running after that, so the copy can be answered
+    // with an error instead of holding its thread.
+    V await(CompletableFuture<V> response) {
+        try {
+            return response.get(maxAgeNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
+            return null;
+        }
+    }
+
+    // Drop the entries that are too old, and the oldest ones beyond the size limit. Copies of a request
+    // still waiting for a dropped entry keep its future and are answered when the request completes.
+    private void expire(long now) {
+        Key oldest;
+        while ((oldest = order.peek()) != null) {
+            Entry<V> entry = entries.get(oldest);
+            if (entry != null && size.get() <= maxEntries && now - entry.createdNanos() <= maxAgeNanos) {
+                return;
+            }
+            if (order.remove(oldest) && entry != null && entries.remove(oldest, entry)) {
+                size.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package ds;
+
+import java.util.SplittableRandom;
+
+// Picks training rows in shuffled epochs: each epoch visits every row once, in a new random order.
+// Sampling with replacement, the default, leaves some rows out of a run of steps and repeats others;
+// epochs give every row the same weight over each pass of the table.
+class EpochSampler {
+
+    private final int[] order;
+    private final SplittableRandom random;
+    private int next;
+
+    EpochSampler(int rows, SplittableRandom random) {
+        order = new int[rows];
+        for (int r = 0; r < rows; r++) {
+            order[r] = r;
+        }
+        this.random = random;
+        next = rows;
+    }
+
+    // The number of rows the sampler visits in each epoch.
+    int rows() {
+        return order.length;
+    }
+
+    // The next row, starting a new epoch in a new order when the last one is done.
+    int nextRow() {
+        if (next == order.length) {
+            // Fisher-Yates shuffle.
+            for (int r = order.length - 1; r > 0; r--) {
+                int other = random.nextInt(r + 1);
+                int row = order[r];
+                order[r] = order[other];
+                order[other] = row;
+            }
+            next = 0;
+        }
+        return order[next++];
+    }
+}
@@ -0,0 +1,231 @@
+package ds;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Carries messages larger than one datagram, such as uploaded training sets and weight dumps, as a
+// series of fragments, and reassembles them on the receiving side. Messages that fit in one datagram
+// are sent as they are, so small requests pay nothing. A fragment is little-endian and holds:
+//
+//   magic          2 bytes  0xB1 0x46. Like the binary format, 0xB1 cannot start a JSON text.
+//   version        1 byte   VERSION
+//   flags          1 byte   reserved, 0
+//   message id     4 bytes  chosen by the sender, the same in every fragment of a message
+//   index          2 bytes  the sequence number of this fragment, from 0
+//   count          2 bytes  the number of fragments in the message
+//   payload        up to PAYLOAD_SIZE bytes of the message
+//
+// Each fragment fills a DATAGRAM_SIZE datagram, so the header costs 1.2% and no datagram is split by IP.
+// A lost fragment loses the message; the sender retransmits it with the same message id, and the
+// fragments already received are kept, so the retransmission only has to fill the gaps.
+// Senders pause for PAUSE_NANOS after every BURST fragments, and receivers ask for a RECEIVE_BUFFER socket
+// buffer, so a large message does not overflow the receiver's socket buffer. By default that buffer only
+// holds about a hundred datagrams.
+//
+// The reassembly buffers are bounded: at most maxMessages incomplete messages, maxMessageBytes per
+// message and maxBufferedBytes in all. Fragments beyond the bounds are dropped, and incomplete messages
+// that receive no fragment for timeoutNanos are discarded when the next message starts.
+class Fragments {
+
+    static final byte MAGIC_0 = (byte) 0xB1;
+    static final byte MAGIC_1 = (byte) 0x46;
+    static final byte VERSION = 1;
+
+    // The largest datagram sent, the same as the receive buffers of the server.
+    static final int DATAGRAM_SIZE = 1000;
+    static final int HEADER_SIZE = 12;
+    static final int PAYLOAD_SIZE = DATAGRAM_SIZE - HEADER_SIZE;
+    static final int MAX_FRAGMENTS = 0xFFFF;
+
+    // Fragments sent back to back, and the pause after each such burst, from the nn.fragment.burst and
+    // nn.fragment.pauseMicros system properties.
+    static final int BURST = Math.max(1, Integer.getInteger("nn.fragment.burst", 32));
+    static final long PAUSE_NANOS = Long.getLong("nn.fragment.pauseMicros", 500L) * 1000L;
+
+    // The socket receive buffer asked for by the server and the client, from the nn.socket.receiveBuffer
+    // system property, so a whole burst of fragments can wait while the receiver is busy. The operating
+    // system may grant less (net.core.rmem_max on Linux).
+    static final int RECEIVE_BUFFER = Integer.getInteger("nn.socket.receiveBuffer", 4 << 20);
+
+    private record Key(SocketAddress sender, int messageId) {
+    }
+
+    // The fragments of a message received so far.
+    private static final class Partial {
+        final byte[][] parts;
+        int received;
+        int bytes;
+        volatile long lastNanos;
+
+        Partial(int count, long now) {
+            parts = new byte[count][];
+            lastNanos = now;
+        }
+    }
+
+    private final int maxMessages;
+    private final int maxMessageBytes;
+    private final long maxBufferedBytes;
+    private final long timeoutNanos;
+    private final ConcurrentHashMap<Key, Partial> partials = new ConcurrentHashMap<>();
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final AtomicInteger lastMessageId = new AtomicInteger();
+    private final LongAdder reassembled = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    Fragments(int maxMessages, int maxMessageBytes, long maxBufferedBytes, long timeoutNanos) {
+        this.maxMessages = maxMessages;
+        this.maxMessageBytes = maxMessageBytes;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.timeoutNanos = timeoutNanos;
+    }
+
+    // Configure the bounds from the nn.fragment.maxMessages, nn.fragment.maxMessageBytes,
+    // nn.fragment.maxBufferedBytes and nn.fragment.timeoutMillis system properties.
+    static Fragments fromSystemProperties() {
+        return new Fragments(Integer.getInteger("nn.fragment.maxMessages", 256),
+                Integer.getInteger("nn.fragment.maxMessageBytes", 8 << 20),
+                Long.getLong("nn.fragment.maxBufferedBytes", 64L << 20),
+                Long.getLong("nn.fragment.timeoutMillis", 5000L) * 1_000_000L);
+    }
+
+    // Return true if the datagram in the buffer, from its position, is a fragment.
+    static boolean isFragment(ByteBuffer datagram) {
+        return datagram.remaining() >= 2 && datagram.get(datagram.position()) == MAGIC_0
+                && datagram.get(datagram.position() + 1) == MAGIC_1;
+    }
+
+    // A new id for a message sent from this side.
+    int nextMessageId() {
+        return lastMessageId.incrementAndGet();
+    }
+
+    // The datagrams that carry a message: the message itself if it fits in one datagram, otherwise its fragments.
+    static List<byte[]> datagrams(byte[] message, int messageId) {
+        if (message.length <= DATAGRAM_SIZE) {
+            return List.of(message);
+        }
+        int count = (message.length + PAYLOAD_SIZE - 1) / PAYLOAD_SIZE;
+        if (count > MAX_FRAGMENTS) {
+            throw new IllegalArgumentException("A message of " + message.length + " bytes needs more than "
+                    + MAX_FRAGMENTS + " fragments");
+        }
+        List<byte[]> fragments = new ArrayList<>(count);
+        for (int index = 0; index < count; index++) {
+            int offset = index * PAYLOAD_SIZE;
+            int length = Math.min(PAYLOAD_SIZE, message.length - offset);
+            ByteBuffer fragment = ByteBuffer.allocate(HEADER_SIZE + length).order(ByteOrder.LITTLE_ENDIAN);
+            fragment.put(MAGIC_0).put(MAGIC_1).put(VERSION).put((byte) 0).putInt(messageId)
+                    .putShort((short) index).putShort((short) count).put(message, offset, length);
+            fragments.add(fragment.array());
+        }
+        return fragments;
+    }
+
+    // Called by a sender after it sends the datagram at index of a message: pauses at the end of each burst.
+    static void pace(int index) {
+        if ((index + 1) % BURST == 0) {
+            LockSupport.parkNanos(PAUSE_NANOS);
+        }
+    }
+
+    // Add a fragment from the sender. Returns the whole message once its last missing fragment arrives,
+    // otherwise null. Malformed fragments and fragments beyond the bounds are dropped.
+    byte[] accept(SocketAddress sender, ByteBuffer fragment) {
+        fragment.order(ByteOrder.LITTLE_ENDIAN);
+        int start = fragment.position();
+        if (fragment.remaining() < HEADER_SIZE || fragment.get(start + 2) != VERSION) {
+            dropped.increment();
+            return null;
+        }
+        int messageId = fragment.getInt(start + 4);
+        int index = fragment.getShort(start + 8) & 0xFFFF;
+        int count = fragment.getShort(start + 10) & 0xFFFF;
+        int length = fragment.remaining() - HEADER_SIZE;
+        if (index >= count || length > PAYLOAD_SIZE || (long) (count - 1) * PAYLOAD_SIZE >= maxMessageBytes) {
+            dropped.increment();
+            return null;
+        }
+        Key key = new Key(sender, messageId);
+        long now = System.nanoTime();
+        Partial partial = partials.get(key);
+        if (partial == null) {
+            expire(now);
+            if (partials.size() >= maxMessages) {
+                dropped.increment();
+                return null;
+            }
+            partial = partials.computeIfAbsent(key, k -> new Partial(count, now));
+        }
+        synchronized (partial) {
+            if (partial.parts.length != count || partials.get(key) != partial) {
+                // A fragment of a different message reusing the id, or of a message already completed.
+                dropped.increment();
+                return null;
+            }
+            partial.lastNanos = now;
+            if (partial.parts[index] != null) {
+                return null;
+            }
+            if (bufferedBytes.addAndGet(length) > maxBufferedBytes) {
+                bufferedBytes.addAndGet(-length);
+                dropped.increment();
+                return null;
+            }
+            byte[] part = new byte[length];
+            fragment.get(start + HEADER_SIZE, part);
+            partial.parts[index] = part;
+            partial.bytes += length;
+            partial.received++;
+            if (partial.received < count) {
+                return null;
+            }
+            partials.remove(key, partial);
+            bufferedBytes.addAndGet(-partial.bytes);
+            byte[] message = new byte[partial.bytes];
+            int offset = 0;
+            for (byte[] p : partial.parts) {
+                System.arraycopy(p, 0, message, offset, p.length);
+                offset += p.length;
+            }
+            reassembled.increment();
+            return message;
+        }
+    }
+
+    // Discard the incomplete messages that have received no fragment for timeoutNanos.
+    private void expire(long now) {
+        for (var entry : partials.entrySet()) {
+            Partial partial = entry.getValue();
+            if (now - partial.lastNanos > timeoutNanos) {
+                synchronized (partial) {
+                    if (partials.remove(entry.getKey(), partial)) {
+                        bufferedBytes.addAndGet(-partial.bytes);
+                        expired.increment();
+                    }
+                }
+            }
+        }
+    }
+
+    // The reassembly counters, for the stats request.
+    HashMap<String, Object> stats() {
+        HashMap<String, Object> stats = new HashMap<>();
+        stats.put("reassembled", reassembled.sum());
+        stats.put("dropped", dropped.sum());
+        stats.put("expired", expired.sum());
+        stats.put("pending", partials.size());
+        stats.put("bufferedBytes", bufferedBytes.get());
+        return stats;
+    }
+}
@@ -0,0 +1,58 @@
+package ds;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+// Asynchronous stochastic gradient descent in the style of Hogwild!.
+// Several workers each pick random rows of the training table and apply their SGD step straight to the
+// network's shared weight arrays, without any locking between them. Updates from different workers may
+// interleave and an occasional one is overwritten; for small networks like this one that costs far less
+// accuracy than a lock would cost time.
+// Each worker draws its rows from its own SplittableRandom, split from the caller's stream, so the rows
+// each worker sees are the same from run to run for the same seed.
+class HogwildTrainer {
+
+    private final DenseNetwork network;
+    private final ExecutorService executor;
+    private final int threads;
+
+    // Train with the given number of workers on the executor, which must be able to run them all at once.
+    // The executor is not owned by the trainer and is not shut down by it.
+    HogwildTrainer(DenseNetwork network, ExecutorService executor, int threads) {
+        this.network = network;
+        this.executor = executor;
+        this.threads = threads;
+    }
+
+    // Perform the given number of SGD steps in total, shared out between the workers.
+    void train(double[][] inputs, double[][] targets, int steps, SplittableRandom random) {
+        List<Callable<Void>> workers = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            int workerSteps = steps / threads + (t < steps % threads ? 1 : 0);
+            SplittableRandom workerRandom = random.split();
+            workers.add(() -> {
+                DenseNetwork.Activations activations = network.newActivations();
+                for (int s = 0; s < workerSteps; s++) {
+                    int row = workerRandom.nextInt(inputs.length);
+                    network.train(inputs[row], targets[row], activations);
+                }
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> worker : executor.invokeAll(workers)) {
+                worker.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while training", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Training worker failed", e.getCause());
+        }
+    }
+}
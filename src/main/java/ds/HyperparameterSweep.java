@@ -0,0 +1,172 @@
+package ds;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Searches for a network that learns a training set by training many candidates side by side.
+// The candidates differ in their seed, which sets both their random initial weights and the rows they
+// sample, their hidden layer width and their learning rate. Every combination is tried.
+// Training runs in rounds of roundSteps steps per candidate on a fork/join pool. Wide candidates take
+// longer than narrow ones, and the pool's work stealing keeps every thread busy until the round ends.
+// After each round the candidates are ranked by total error and only the best keepFraction of them go on,
+// so candidates stuck in a poor minimum stop early. The sweep ends in the round in which a candidate's
+// error falls below targetError, or when the remaining candidates have run maxSteps steps.
+class HyperparameterSweep {
+
+    // One network of the sweep and how far it got.
+    static final class Candidate {
+        final long seed;
+        final int hidden;
+        final double learningRate;
+        final DenseNetwork network;
+        final SplittableRandom random;
+        int steps;
+        double error = Double.NaN;
+        boolean converged;
+        // The number of rounds the candidate trained in.
+        int rounds;
+
+        Candidate(long seed, int numInputs, int hidden, int numOutputs, double learningRate) {
+            this.seed = seed;
+            this.hidden = hidden;
+            this.learningRate = learningRate;
+            network = new DenseNetwork(numInputs, hidden, numOutputs, new Random(seed));
+            network.learningRate = learningRate;
+            random = new SplittableRandom(seed);
+        }
+    }
+
+    private final double[][] inputs;
+    private final double[][] targets;
+    private final int maxSteps;
+    private final int roundSteps;
+    private final int checkInterval;
+    private final double targetError;
+    private final double keepFraction;
+    private final List<Candidate> candidates = new ArrayList<>();
+    // Set once a candidate converges, so the others stop at their next error check instead of finishing the round.
+    private volatile boolean found;
+    private int rounds;
+
+    HyperparameterSweep(double[][] inputs, double[][] targets, long[] seeds, int[] hiddenSizes, double[] learningRates,
+                        int maxSteps, int roundSteps, int checkInterval, double targetError, double keepFraction) {
+        this.inputs = inputs;
+        this.targets = targets;
+        this.maxSteps = maxSteps;
+        this.roundSteps = roundSteps;
+        this.checkInterval = checkInterval;
+        this.targetError = targetError;
+        this.keepFraction = keepFraction;
+        for (long seed : seeds) {
+            for (int hidden : hiddenSizes) {
+                for (double learningRate : learningRates) {
+                    candidates.add(new Candidate(seed, inputs[0].length, hidden, targets[0].length, learningRate));
+                }
+            }
+        }
+    }
+
+    // Trains the candidates in candidates[from, to) by splitting the range until one is left.
+    private final class RoundTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        // Tasks are never serialized; the candidates are not serializable.
+        private final transient List<Candidate> alive;
+        private final int from;
+        private final int to;
+        private final int steps;
+
+        RoundTask(List<Candidate> alive, int from, int to, int steps) {
+            this.alive = alive;
+            this.from = from;
+            this.to = to;
+            this.steps = steps;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                trainRound(alive.get(from), steps);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RoundTask(alive, from, middle, steps), new RoundTask(alive, middle, to, steps));
+        }
+    }
+
+    // Run the sweep on the pool and return the best candidate: the converged one with the lowest error,
+    // or the lowest error of all if none converged. The pool is not owned by the sweep and is not shut down by it.
+    Candidate run(ForkJoinPool pool) {
+        List<Candidate> alive = new ArrayList<>(candidates);
+        while (true) {
+            int steps = Math.min(roundSteps, maxSteps - alive.get(0).steps);
+            pool.invoke(new RoundTask(alive, 0, alive.size(), steps));
+            rounds++;
+            alive.sort(Comparator.comparingDouble(candidate -> candidate.error));
+            if (found || alive.get(0).steps >= maxSteps) {
+                break;
+            }
+            int keep = Math.max(1, (int) Math.ceil(alive.size() * keepFraction));
+            alive = new ArrayList<>(alive.subList(0, keep));
+        }
+        Candidate best = null;
+        for (Candidate candidate : candidates) {
+            if (best == null || (candidate.converged && !best.converged)
+                    || (candidate.converged == best.converged && candidate.error < best.error)) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    // Sequential SGD on one candidate for a round. As in trainSteps, the error of the rows trained on since
+    // the last check estimates the total error, and the full evaluation only runs when the estimate is below
+    // the target. The candidate stops early if it or another candidate converges.
+    private void trainRound(Candidate candidate, int steps) {
+        candidate.rounds++;
+        double sampledError = 0.0;
+        int sinceCheck = 0;
+        for (int s = 0; s < steps; s++) {
+            int row = candidate.random.nextInt(inputs.length);
+            sampledError += candidate.network.train(inputs[row], targets[row]);
+            candidate.steps++;
+            if (++sinceCheck == checkInterval) {
+                if (sampledError / sinceCheck * inputs.length < targetError) {
+                    candidate.error = candidate.network.calculateTotalError(inputs, targets);
+                    if (candidate.error < targetError) {
+                        candidate.converged = true;
+                        found = true;
+                        return;
+                    }
+                }
+                if (found) {
+                    break;
+                }
+                sinceCheck = 0;
+                sampledError = 0.0;
+            }
+        }
+        candidate.error = candidate.network.calculateTotalError(inputs, targets);
+    }
+
+    List<Candidate> candidates() {
+        return candidates;
+    }
+
+    int rounds() {
+        return rounds;
+    }
+
+    // The training steps run by all candidates together.
+    long totalSteps() {
+        long total = 0;
+        for (Candidate candidate : candidates) {
+            total += candidate.steps;
+        }
+        return total;
+    }
+}
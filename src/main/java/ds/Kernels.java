@@ -0,0 +1,59 @@
+package ds;
+
+// The array loops that DenseNetwork spends its time in, behind a switchable backend.
+// The backend is chosen once at startup with the nn.backend system property:
+//   scalar  plain Java loops (the default)
+//   vector  SIMD loops written with the jdk.incubator.vector API; the JVM must be started with
+//           --add-modules jdk.incubator.vector, otherwise the scalar loops are used
+interface Kernels {
+
+    Kernels INSTANCE = select(System.getProperty("nn.backend", "scalar"));
+
+    // Return the sum of a[aOffset + i] * b[bOffset + i] for i in [0, length).
+    double dot(double[] a, int aOffset, double[] b, int bOffset, int length);
+
+    // Add alpha * x[xOffset + i] to y[yOffset + i] for i in [0, length).
+    void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length);
+
+    // Replace values[offset + i] with the sigmoid 1 / (1 + e^-v) for i in [0, length).
+    void squash(double[] values, int offset, int length);
+
+    static Kernels select(String backend) {
+        if (backend.equals("vector")) {
+            try {
+                Kernels kernels = new VectorKernels();
+                Log.info("Using the vector backend with " + VectorKernels.lanes() + " lanes");
+                return kernels;
+            } catch (LinkageError e) {
+                Log.warn("The vector backend needs --add-modules jdk.incubator.vector; using the scalar backend");
+            }
+        }
+        return new ScalarKernels();
+    }
+
+    final class ScalarKernels implements Kernels {
+
+        @Override
+        public double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+            double total = 0.0;
+            for (int i = 0; i < length; i++) {
+                total += a[aOffset + i] * b[bOffset + i];
+            }
+            return total;
+        }
+
+        @Override
+        public void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+            for (int i = 0; i < length; i++) {
+                y[yOffset + i] += alpha * x[xOffset + i];
+            }
+        }
+
+        @Override
+        public void squash(double[] values, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                values[i] = DenseNetwork.squash(values[i]);
+            }
+        }
+    }
+}
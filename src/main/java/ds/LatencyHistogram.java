@@ -0,0 +1,84 @@
+package ds;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// A concurrent latency histogram with HDR-style log-linear buckets.
+// Values below 2 * SUB_BUCKETS nanoseconds get a bucket each. Above that, every power of two is split into
+// SUB_BUCKETS equal buckets, so any recorded value is known to within 1 / SUB_BUCKETS (about 3%) from
+// one nanosecond up to the largest long. Recording is one array increment and needs no lock.
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    // Record one latency in nanoseconds. Negative values are recorded as 0.
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    long count() {
+        return total.get();
+    }
+
+    // The bucket of a value: the shift that brings it below 2 * SUB_BUCKETS, and its top bits.
+    private static int index(long value) {
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    // The largest value that falls in a bucket.
+    private static long highestValue(int index) {
+        int shift = Math.max(0, index / SUB_BUCKETS - 1);
+        long top = index - (long) shift * SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+
+    // The value at or below which the given fraction of the recorded values fall, in nanoseconds.
+    // Returns 0 when nothing has been recorded.
+    long percentile(double fraction) {
+        long recorded = total.get();
+        if (recorded == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * recorded));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    // The count, mean, p50, p99, p999 and max in microseconds. Concurrent recording may make the
+    // figures differ by the few values recorded while they were read.
+    HashMap<String, Object> summary() {
+        HashMap<String, Object> summary = new HashMap<>();
+        long recorded = total.get();
+        summary.put("count", recorded);
+        summary.put("meanMicros", recorded == 0 ? 0.0 : Math.round(sum.get() / 1e1 / recorded) / 1e2);
+        summary.put("p50Micros", micros(percentile(0.50)));
+        summary.put("p99Micros", micros(percentile(0.99)));
+        summary.put("p999Micros", micros(percentile(0.999)));
+        summary.put("maxMicros", micros(max.get()));
+        return summary;
+    }
+
+    // Nanoseconds to microseconds, rounded to two decimals to keep the stats response small.
+    private static double micros(long nanos) {
+        return Math.round(nanos / 10.0) / 100.0;
+    }
+}
@@ -0,0 +1,278 @@
+package ds;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// A headless load generator, run with "java ds.NeuralNetworkClient load [options]".
+// Each client has its own socket, a sender thread and a receiver thread, and keeps up to concurrency
+// requests outstanding. Requests are drawn from a weighted mix of request types and paced to a total
+// target rate shared by all clients. Latency is measured from the time a request was due to be sent,
+// so a server that falls behind the rate is charged for the wait as well.
+//
+// Every request carries an id that its reply echoes, so each client pipelines up to concurrency requests
+// on one socket. Lost requests are not retransmitted; they are counted, so the loss rate can be measured.
+// Busy replies from the server's admission control are not retried either. They are counted apart from
+// the errors and left out of the latency figures, which cover the requests the server performed.
+//
+// Options, each followed by a value:
+//   --host         server host (default localhost)
+//   --port         server port (default 6789)
+//   --mix          request types and weights, e.g. test=90,train=5,getCurrentRange=5 (the default)
+//   --clients      number of client sockets (default 4)
+//   --concurrency  requests outstanding per client (default 16)
+//   --rate         total requests per second, 0 for as fast as replies allow (default 0)
+//   --duration     seconds to send for (default 10)
+//   --iterations   training steps per train request (default 100)
+//   --timeout      milliseconds before an unanswered request counts as lost (default 1000)
+// The nn.model and nn.protocol system properties select the model and the wire format as in the menu client.
+class LoadGenerator {
+
+    private static final int BUFFER_SIZE = 1000;
+
+    private final NeuralNetworkClient client = new NeuralNetworkClient();
+    private String host = "localhost";
+    private int port = 6789;
+    private final LinkedHashMap<String, Integer> mix = new LinkedHashMap<>();
+    private int clients = 4;
+    private int concurrency = 16;
+    private double rate;
+    private int durationSeconds = 10;
+    private int iterations = 100;
+    private int timeoutMillis = 1000;
+
+    private final ConcurrentHashMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder busy = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    // The number of requests scheduled so far by all clients, used to pace them to the rate.
+    private final AtomicLong scheduled = new AtomicLong();
+    private volatile boolean sending = true;
+    private long startNanos;
+
+    // A request waiting for its reply.
+    private record Pending(String type, long dueNanos) {
+    }
+
+    static LoadGenerator fromArgs(String[] args) {
+        LoadGenerator generator = new LoadGenerator();
+        for (int a = 0; a + 1 < args.length; a += 2) {
+            String value = args[a + 1];
+            switch (args[a]) {
+                case "--host":
+                    generator.host = value;
+                    break;
+                case "--port":
+                    generator.port = Integer.parseInt(value);
+                    break;
+                case "--mix":
+                    generator.parseMix(value);
+                    break;
+                case "--clients":
+                    generator.clients = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "--concurrency":
+                    generator.concurrency = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "--rate":
+                    generator.rate = Double.parseDouble(value);
+                    break;
+                case "--duration":
+                    generator.durationSeconds = Integer.parseInt(value);
+                    break;
+                case "--iterations":
+                    generator.iterations = Integer.parseInt(value);
+                    break;
+                case "--timeout":
+                    generator.timeoutMillis = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[a]);
+            }
+        }
+        if (generator.mix.isEmpty()) {
+            generator.parseMix("test=90,train=5,getCurrentRange=5");
+        }
+        return generator;
+    }
+
+    private void parseMix(String value) {
+        mix.clear();
+        for (String entry : value.split(",")) {
+            String[] parts = entry.split("=");
+            String type = parts[0].trim();
+            if (!type.equals("test") && !type.equals("train") && !type.equals("getCurrentRange")) {
+                throw new IllegalArgumentException("The mix can hold test, train and getCurrentRange, not " + type);
+            }
+            mix.put(type, parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1);
+        }
+    }
+
+    void run() throws IOException, InterruptedException {
+        InetAddress address = InetAddress.getByName(host);
+        System.out.println("Sending " + mix + " to " + host + ":" + port + " from " + clients + " clients, "
+                + concurrency + " outstanding each, " + (rate > 0 ? rate + " requests per second" : "unpaced")
+                + ", for " + durationSeconds + " s" + (client.binary ? " in the binary format" : " as JSON"));
+        List<Thread> threads = new ArrayList<>();
+        List<DatagramSocket> sockets = new ArrayList<>();
+        startNanos = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            DatagramSocket socket = new DatagramSocket();
+            socket.setSoTimeout(50);
+            sockets.add(socket);
+            ConcurrentHashMap<Integer, Pending> pending = new ConcurrentHashMap<>();
+            Semaphore slots = new Semaphore(concurrency);
+            SplittableRandom random = new SplittableRandom(c);
+            threads.add(Thread.ofPlatform().name("load-send-" + c)
+                    .start(() -> send(socket, address, pending, slots, random)));
+            threads.add(Thread.ofPlatform().name("load-receive-" + c)
+                    .start(() -> receive(socket, pending, slots)));
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+        sending = false;
+        long sendNanos = System.nanoTime() - startNanos;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (DatagramSocket socket : sockets) {
+            socket.close();
+        }
+        report(sendNanos);
+    }
+
+    // Send requests until the duration is over, waiting for a free slot and for the next due time.
+    private void send(DatagramSocket socket, InetAddress address, Map<Integer, Pending> pending, Semaphore slots,
+                      SplittableRandom random) {
+        int total = mix.values().stream().mapToInt(Integer::intValue).sum();
+        int requestId = 0;
+        try {
+            while (sending) {
+                if (!slots.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+                    continue;
+                }
+                long due = rate > 0 ? startNanos + (long) (scheduled.getAndIncrement() * 1e9 / rate) : System.nanoTime();
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                if (!sending) {
+                    slots.release();
+                    break;
+                }
+                String type = pick(random, total);
+                // Ids start at 1, because 0 means no id in the binary format.
+                requestId = requestId == Integer.MAX_VALUE ? 1 : requestId + 1;
+                byte[] data = client.encode(payload(type, random), requestId);
+                pending.put(requestId, new Pending(type, due));
+                socket.send(new DatagramPacket(data, data.length, address, port));
+                sent.increment();
+            }
+        } catch (IOException e) {
+            System.out.println("IO Exception: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Match replies to their requests and record their latency. Requests unanswered for longer than the
+    // timeout are counted as lost and free their slot. Stops once sending is over and nothing is pending.
+    private void receive(DatagramSocket socket, Map<Integer, Pending> pending, Semaphore slots) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (sending || !pending.isEmpty()) {
+            try {
+                reply.setLength(buffer.length);
+                socket.receive(reply);
+            } catch (SocketTimeoutException e) {
+                long now = System.nanoTime();
+                pending.entrySet().removeIf(entry -> {
+                    boolean lost = now - entry.getValue().dueNanos() > timeoutNanos;
+                    if (lost) {
+                        timeouts.increment();
+                        slots.release();
+                    }
+                    return lost;
+                });
+                continue;
+            } catch (IOException e) {
+                System.out.println("IO Exception: " + e.getMessage());
+                return;
+            }
+            long now = System.nanoTime();
+            ByteBuffer data = ByteBuffer.wrap(buffer, 0, reply.getLength());
+            boolean binaryReply = BinaryProtocol.isBinary(data);
+            Pending request = pending.remove(RequestDispatcher.requestId(buffer, reply.getLength()));
+            if (request == null) {
+                // The reply to a request already counted as lost.
+                continue;
+            }
+            slots.release();
+            if (RequestDispatcher.retryAfterMillis(buffer, reply.getLength()) >= 0) {
+                busy.increment();
+                continue;
+            }
+            boolean ok = binaryReply ? data.get(BinaryProtocol.HEADER_SIZE) == BinaryProtocol.STATUS_OK
+                    : new String(buffer, 0, reply.getLength()).contains("\"status\":\"OK\"");
+            if (!ok) {
+                errors.increment();
+            }
+            latencies.computeIfAbsent(request.type(), type -> new LatencyHistogram()).record(now - request.dueNanos());
+        }
+    }
+
+    private String pick(SplittableRandom random, int total) {
+        int ticket = random.nextInt(total);
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            ticket -= entry.getValue();
+            if (ticket < 0) {
+                return entry.getKey();
+            }
+        }
+        return mix.keySet().iterator().next();
+    }
+
+    private HashMap<String, Object> payload(String type, SplittableRandom random) {
+        switch (type) {
+            case "train":
+                return client.train(iterations);
+            case "test":
+                return client.testWithPair(random.nextInt(2), random.nextInt(2));
+            default:
+                return client.getTruthTablePayload();
+        }
+    }
+
+    // Print the throughput and the latency percentiles of each request type.
+    private void report(long sendNanos) {
+        double seconds = sendNanos / 1e9;
+        long answered = latencies.values().stream().mapToLong(LatencyHistogram::count).sum();
+        System.out.println();
+        System.out.printf("Sent %d requests in %.1f s: %.0f requests per second, %.0f answered per second%n",
+                sent.sum(), seconds, sent.sum() / seconds, answered / seconds);
+        System.out.println("Answered " + answered + ", errors " + errors.sum() + ", busy " + busy.sum()
+                + ", lost " + timeouts.sum());
+        System.out.printf("%-16s %10s %10s %10s %10s %10s%n", "request", "count", "p50 us", "p99 us", "p999 us", "max us");
+        latencies.forEach((type, histogram) -> {
+            HashMap<String, Object> summary = histogram.summary();
+            System.out.printf("%-16s %10d %10.1f %10.1f %10.1f %10.1f%n", type, summary.get("count"),
+                    summary.get("p50Micros"), summary.get("p99Micros"), summary.get("p999Micros"), summary.get("maxMicros"));
+        });
+    }
+}
@@ -0,0 +1,178 @@
+package ds;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// The server's log. Threads hand their events to a background writer through a bounded ring buffer,
+// so a request never waits for the console. The ring is allocated once; when it is full, events are
+// dropped and counted rather than blocking the thread that logs them.
+//
+// An event is a message and an optional argument, joined by the writer thread, so that building the
+// text of a large payload also happens off the request path. Arguments must not change after they are
+// logged; strings and numbers are safe.
+//
+// Configured by system properties:
+//   nn.log.level     DEBUG, INFO (default), WARN, ERROR or OFF
+//   nn.log.payloads  false turns off logging the full text of requests and responses
+//   nn.log.buffer    ring buffer slots, rounded up to a power of two (default 8192)
+//   nn.log.async     false writes each event on the calling thread, for debugging
+final class Log {
+
+    enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    static final Level LEVEL = Level.valueOf(System.getProperty("nn.log.level", "INFO").toUpperCase());
+    static final boolean PAYLOADS = Boolean.parseBoolean(System.getProperty("nn.log.payloads", "true"));
+    private static final boolean ASYNC = Boolean.parseBoolean(System.getProperty("nn.log.async", "true"));
+
+    // A bounded multi-producer ring in the style of Dmitry Vyukov's queue. Each slot has a sequence number:
+    // equal to the claim position when the slot is free for that producer, and one more once the event
+    // in it is published for the writer.
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(2, Integer.getInteger("nn.log.buffer", 8192) - 1)) << 1;
+    private static final int MASK = CAPACITY - 1;
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final Level[] levels = new Level[CAPACITY];
+    private static final String[] messages = new String[CAPACITY];
+    private static final Object[] arguments = new Object[CAPACITY];
+    private static final AtomicLong tail = new AtomicLong();
+    // Only the writer thread reads and advances the head.
+    private static long head;
+
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile boolean closing;
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+        if (ASYNC && LEVEL != Level.OFF) {
+            writer = new Thread(Log::write, "log-writer");
+            writer.setDaemon(true);
+            writer.start();
+            // Write what is still queued when the server stops.
+            Runtime.getRuntime().addShutdownHook(new Thread(Log::close));
+        } else {
+            writer = null;
+        }
+    }
+
+    private Log() {
+    }
+
+    static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0 && level != Level.OFF;
+    }
+
+    static void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    static void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    static void info(String message, Object argument) {
+        log(Level.INFO, message, argument);
+    }
+
+    static void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    static void error(String message) {
+        log(Level.ERROR, message, null);
+    }
+
+    // Log the full text of a request or response at INFO, unless payload logging is switched off.
+    static void payload(String message, Object payload) {
+        if (PAYLOADS) {
+            log(Level.INFO, message, payload);
+        }
+    }
+
+    // The number of events dropped because the ring was full.
+    static long dropped() {
+        return dropped.get();
+    }
+
+    static void log(Level level, String message, Object argument) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        if (writer == null) {
+            print(System.out, level, message, argument);
+            return;
+        }
+        while (true) {
+            long position = tail.get();
+            int slot = (int) position & MASK;
+            long difference = sequences.get(slot) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    levels[slot] = level;
+                    messages[slot] = message;
+                    arguments[slot] = argument;
+                    sequences.lazySet(slot, position + 1);
+                    return;
+                }
+            } else if (difference < 0) {
+                // The writer has not freed this slot yet: the ring is full.
+                dropped.incrementAndGet();
+                return;
+            }
+            // Another producer claimed the position first; try the next one.
+        }
+    }
+
+    // The writer thread: print every published event, and sleep briefly when the ring is empty.
+    private static void write() {
+        long reportedDrops = 0;
+        while (true) {
+            PrintStream out = System.out;
+            int written = 0;
+            while (true) {
+                int slot = (int) head & MASK;
+                if (sequences.get(slot) != head + 1) {
+                    break;
+                }
+                print(out, levels[slot], messages[slot], arguments[slot]);
+                messages[slot] = null;
+                arguments[slot] = null;
+                sequences.lazySet(slot, head + CAPACITY);
+                head++;
+                written++;
+            }
+            long drops = dropped.get();
+            if (drops != reportedDrops) {
+                print(out, Level.WARN, "Log buffer full, dropped events: ", drops - reportedDrops);
+                reportedDrops = drops;
+            }
+            if (written > 0) {
+                out.flush();
+            } else if (closing) {
+                return;
+            } else {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+    }
+
+    // INFO events are printed as they are, the other levels with their name in front.
+    private static void print(PrintStream out, Level level, String message, Object argument) {
+        String text = argument == null ? message : message + argument;
+        out.println(level == Level.INFO ? text : level + " " + text);
+    }
+
+    // Let the writer empty the ring, waiting at most a second.
+    private static void close() {
+        closing = true;
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package ds;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Mini-batch gradient descent for a DenseNetwork.
+// Each step picks batchSize random rows of the training table, computes their gradients in
+// parallel on a fork/join pool, sums the partial gradients and then updates the weights once
+// with the average gradient.
+class MiniBatchTrainer {
+
+    private final DenseNetwork network;
+    private final ForkJoinPool pool;
+    private final int batchSize;
+    // The update rule, or null for plain SGD at the network's learning rate.
+    private final Optimizer optimizer;
+    // Batches smaller than this are computed on a single thread without splitting.
+    private final int leafSize;
+
+    // Train on the given pool. The pool is not owned by the trainer and is not shut down by it.
+    MiniBatchTrainer(DenseNetwork network, ForkJoinPool pool, int batchSize) {
+        this(network, pool, batchSize, null);
+    }
+
+    // Train on the given pool, updating the weights with the optimizer unless it is null.
+    MiniBatchTrainer(DenseNetwork network, ForkJoinPool pool, int batchSize, Optimizer optimizer) {
+        this.network = network;
+        this.pool = pool;
+        this.batchSize = batchSize;
+        this.optimizer = optimizer;
+        this.leafSize = Math.max(1, batchSize / Math.max(1, pool.getParallelism()));
+    }
+
+    // The summed gradients of one slice of a batch.
+    private static final class Gradients {
+        final double[] hidden;
+        final double[] output;
+
+        Gradients(DenseNetwork network) {
+            hidden = new double[network.hiddenWeights.length];
+            output = new double[network.outputWeights.length];
+        }
+
+        void add(Gradients other) {
+            for (int w = 0; w < hidden.length; w++) {
+                hidden[w] += other.hidden[w];
+            }
+            for (int w = 0; w < output.length; w++) {
+                output[w] += other.output[w];
+            }
+        }
+    }
+
+    // Computes the gradients of rows[from, to) by splitting the range until it is small enough.
+    private final class GradientTask extends RecursiveTask<Gradients> {
+        private static final long serialVersionUID = 1L;
+        private final int[] rows;
+        private final int from;
+        private final int to;
+        private final double[][] inputs;
+        private final double[][] targets;
+
+        GradientTask(int[] rows, int from, int to, double[][] inputs, double[][] targets) {
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+            this.inputs = inputs;
+            this.targets = targets;
+        }
+
+        @Override
+        protected Gradients compute() {
+            if (to - from <= leafSize) {
+                Gradients gradients = new Gradients(network);
+                DenseNetwork.Activations activations = network.newActivations();
+                for (int r = from; r < to; r++) {
+                    network.accumulateGradients(inputs[rows[r]], targets[rows[r]], activations,
+                            gradients.hidden, gradients.output);
+                }
+                return gradients;
+            }
+            int mid = (from + to) >>> 1;
+            GradientTask left = new GradientTask(rows, from, mid, inputs, targets);
+            left.fork();
+            Gradients right = new GradientTask(rows, mid, to, inputs, targets).compute();
+            Gradients gradients = left.join();
+            gradients.add(right);
+            return gradients;
+        }
+    }
+
+    // Perform the given number of mini-batch steps, sampling rows with replacement.
+    void train(double[][] inputs, double[][] targets, int steps, SplittableRandom rand) {
+        train(inputs, targets, steps, rand, null);
+    }
+
+    // Perform the given number of mini-batch steps, taking the rows from epochs, or with replacement if it is null.
+    void train(double[][] inputs, double[][] targets, int steps, SplittableRandom rand, EpochSampler epochs) {
+        int[] rows = new int[batchSize];
+        for (int s = 0; s < steps; s++) {
+            for (int b = 0; b < batchSize; b++) {
+                rows[b] = epochs != null ? epochs.nextRow() : rand.nextInt(inputs.length);
+            }
+            Gradients gradients = pool.invoke(new GradientTask(rows, 0, batchSize, inputs, targets));
+            if (optimizer != null) {
+                optimizer.apply(gradients.hidden, gradients.output, 1.0 / batchSize);
+            } else {
+                network.applyGradients(gradients.hidden, gradients.output, 1.0 / batchSize);
+            }
+        }
+    }
+}
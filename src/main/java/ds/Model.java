@@ -0,0 +1,108 @@
+package ds;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// One client's model: a neural network and the truth table it is trained on.
+// The server keeps one Model per session id in a ModelRegistry.
+class Model {
+
+    final String id;
+    NeuralNetwork neuralNetwork = new NeuralNetwork(2, 5, 1, null, null, null, null);
+
+    // Create an initial truth table with all 0's in the range.
+    // The table is replaced as a whole and never changed in place, so it can be read without the lock.
+    volatile ArrayList<Double[][]> userTrainingSets = new ArrayList<Double[][]>(Arrays.asList(
+            new Double[][]{{0.0, 0.0}, {0.0}},
+            new Double[][]{{0.0, 1.0}, {0.0}},
+            new Double[][]{{1.0, 0.0}, {0.0}},
+            new Double[][]{{1.0, 1.0}, {0.0}}));
+
+    // Guards neuralNetwork and userTrainingSets. Requests that change the model (setCurrentRange, train)
+    // take the write lock; checkpoints take the read lock to copy a consistent state.
+    // The lock is fair so that a checkpoint queued behind a background training job gets its turn between slices.
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+
+    // The update rule of the last train request that chose one, with its state. Guarded by the lock.
+    Optimizer optimizer;
+
+    // An immutable copy of the weights that inference runs on without taking the lock.
+    // Training publishes a new copy every few thousand steps by replacing the reference, so test
+    // requests see either the old or the new weights, never a half updated mix.
+    // Each copy is numbered, so replicas can tell which weights they hold.
+    private volatile Published published;
+
+    // A published copy of the weights, its version and the wall clock time it was published.
+    record Published(NeuralNetwork network, long version, long publishedMillis) {
+    }
+
+    // The inference-only form made by the compile request. It is served only while the version it was
+    // compiled from is the published one, so the next published snapshot retires it.
+    private volatile CompiledNetwork compiled;
+
+    // Counts the changes made to the model. Checkpoints compare it with the count they last saved.
+    volatile long updates;
+    volatile long checkpointedUpdates;
+
+    Model(String id) {
+        this.id = id;
+        publishSnapshot();
+    }
+
+    // Restore a model from its saved network and truth table.
+    Model(String id, NeuralNetwork neuralNetwork, ArrayList<Double[][]> userTrainingSets) {
+        this.id = id;
+        this.neuralNetwork = neuralNetwork;
+        this.userTrainingSets = userTrainingSets;
+        publishSnapshot();
+    }
+
+    // Copy the current weights into a new snapshot for inference. Called while holding the write lock.
+    void publishSnapshot() {
+        publishSnapshot(published == null ? 1 : published.version() + 1, System.currentTimeMillis());
+    }
+
+    // Publish the current weights under the given version. Replicas use the version and time of the primary's copy.
+    void publishSnapshot(long version, long publishedMillis) {
+        published = new Published(new NeuralNetwork(neuralNetwork.network.copy()), version, publishedMillis);
+    }
+
+    // The latest published weights. The returned network must only be read.
+    NeuralNetwork snapshot() {
+        return published.network();
+    }
+
+    // The latest published weights together with their version.
+    Published published() {
+        return published;
+    }
+
+    // The compiled form of the published weights, or null if there is none or the weights have changed since.
+    CompiledNetwork compiled() {
+        CompiledNetwork current = compiled;
+        return current != null && current.version == published.version() ? current : null;
+    }
+
+    void setCompiled(CompiledNetwork compiled) {
+        this.compiled = compiled;
+    }
+
+    // Record a change to the network or truth table. Called while holding the write lock.
+    void markUpdated() {
+        updates++;
+    }
+
+    // A rough estimate of the heap used by this model, used by the registry's memory cap.
+    long estimatedBytes() {
+        DenseNetwork network = neuralNetwork.network;
+        long parameters = network.hiddenWeights.length + network.outputWeights.length
+                + network.hiddenBiases.length + network.outputBiases.length;
+        long activations = 2L * (network.numHidden + network.numOutputs);
+        // Each boxed value of the training set costs about 24 bytes, and each row about 64 more in array headers.
+        long rows = userTrainingSets.size();
+        long table = rows * (24L * (network.numInputs + network.numOutputs) + 64);
+        // The published snapshot holds a second copy. Object headers and the lock come to roughly a kilobyte.
+        return 16 * (parameters + activations) + table + 1024;
+    }
+}
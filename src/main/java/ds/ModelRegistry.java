@@ -0,0 +1,172 @@
+package ds;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+// The models held by the server, keyed by session id.
+// Entries are kept in least recently used order. The least recently used models are evicted
+// when there are more than maxModels entries, when the estimated memory goes over maxBytes,
+// or when a model has not been used for maxIdleMillis. A limit of 0 disables that check.
+class ModelRegistry {
+
+    // Used when a request does not name a model, so older clients share a single model as before.
+    static final String DEFAULT_MODEL = "default";
+
+    private final int maxModels;
+    private final long maxBytes;
+    private final long maxIdleMillis;
+
+    private final LinkedHashMap<String, Entry> models = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    private static final class Entry {
+        final Model model;
+        long bytes;
+        long lastAccess;
+
+        Entry(Model model, long now) {
+            this.model = model;
+            this.bytes = model.estimatedBytes();
+            this.lastAccess = now;
+        }
+    }
+
+    ModelRegistry(int maxModels, long maxBytes, long maxIdleMillis) {
+        this.maxModels = maxModels;
+        this.maxBytes = maxBytes;
+        this.maxIdleMillis = maxIdleMillis;
+    }
+
+    // Build a registry from the nn.models.max, nn.models.maxBytes and nn.models.idleSeconds system properties.
+    static ModelRegistry fromSystemProperties() {
+        return new ModelRegistry(Integer.getInteger("nn.models.max", 10000),
+                Long.getLong("nn.models.maxBytes", 0L),
+                Long.getLong("nn.models.idleSeconds", 0L) * 1000);
+    }
+
+    // Loads a model that is not held, for example from a checkpoint. Returns null if there is none.
+    private Function<String, Model> loader = id -> null;
+
+    // Called with each model the registry evicts.
+    private Consumer<Model> evictionListener = model -> { };
+
+    synchronized void setEvictionListener(Consumer<Model> evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
+    // Set where models missing from the registry are loaded from before a new one is created.
+    synchronized void setLoader(Function<String, Model> loader) {
+        this.loader = loader;
+    }
+
+    // Return the model with the given id, loading or creating it if it is not held.
+    // The loader reads from disk, so it runs outside the registry's monitor. If another request added
+    // the model meanwhile, that model is kept and the loaded copy is dropped.
+    Model getOrCreate(String id) {
+        if (id == null) {
+            id = DEFAULT_MODEL;
+        }
+        Function<String, Model> loader;
+        synchronized (this) {
+            Entry entry = models.get(id);
+            if (entry != null) {
+                hits++;
+                entry.lastAccess = System.currentTimeMillis();
+                evict(entry.lastAccess, entry);
+                return entry.model;
+            }
+            misses++;
+            loader = this.loader;
+        }
+        Model loaded = loader.apply(id);
+        synchronized (this) {
+            Entry entry = models.get(id);
+            if (entry != null) {
+                return entry.model;
+            }
+            return put(loaded != null ? loaded : new Model(id));
+        }
+    }
+
+    // Add a model, replacing any model with the same id, and return it.
+    synchronized Model put(Model model) {
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(model, now);
+        Entry replaced = models.put(model.id, entry);
+        if (replaced != null) {
+            totalBytes -= replaced.bytes;
+        }
+        totalBytes += entry.bytes;
+        evict(now, entry);
+        return model;
+    }
+
+    // Remove a model, unless it has been replaced under its id since. Used when a model moves to another node.
+    synchronized void remove(Model model) {
+        Entry entry = models.get(model.id);
+        if (entry != null && entry.model == model) {
+            models.remove(model.id);
+            totalBytes -= entry.bytes;
+        }
+    }
+
+    // Estimate a model's memory again after its network or training set was replaced, and evict
+    // other models if it no longer fits.
+    synchronized void resized(Model model) {
+        Entry entry = models.get(model.id);
+        if (entry == null || entry.model != model) {
+            return;
+        }
+        long bytes = model.estimatedBytes();
+        totalBytes += bytes - entry.bytes;
+        entry.bytes = bytes;
+        entry.lastAccess = System.currentTimeMillis();
+        evict(entry.lastAccess, entry);
+    }
+
+    // The models currently held, for checkpointing.
+    synchronized List<Model> snapshot() {
+        List<Model> held = new ArrayList<>(models.size());
+        for (Entry entry : models.values()) {
+            held.add(entry.model);
+        }
+        return held;
+    }
+
+    // Remove least recently used entries until all limits hold again. The entry just used is kept.
+    private void evict(long now, Entry current) {
+        Iterator<Entry> eldest = models.values().iterator();
+        while (eldest.hasNext()) {
+            Entry entry = eldest.next();
+            boolean overCount = maxModels > 0 && models.size() > maxModels;
+            boolean overBytes = maxBytes > 0 && totalBytes > maxBytes;
+            boolean idle = maxIdleMillis > 0 && now - entry.lastAccess > maxIdleMillis;
+            if (entry == current || !(overCount || overBytes || idle)) {
+                return;
+            }
+            eldest.remove();
+            totalBytes -= entry.bytes;
+            evictions++;
+            evictionListener.accept(entry.model);
+        }
+    }
+
+    // The number of models held and the cache counters, for the getModelStats request.
+    synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("models", models.size());
+        stats.put("estimatedBytes", totalBytes);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("evictions", evictions);
+        return stats;
+    }
+}
@@ -0,0 +1,169 @@
+package ds;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// The NeuralNetwork class represents two layers of neurons - a hidden layer and an output layer.
+// We also include the number of inputs and the learning rate.
+// The learning rate determines the step size by which the network’s weights are
+// updated during each iteration of training. This is typically chosen experimentally.
+class NeuralNetwork {
+
+    // This truth table example will have two inputs.
+    private int numInputs;
+
+    // The weights, biases and per step state of both layers are kept in flat arrays.
+    // This class only converts between those arrays and the List based interface.
+    final DenseNetwork network;
+
+    // The neural network is constructed by specifying the number of inputs, the number of neurons in the hidden layer,
+    // the number of neurons in the output layer, the hidden layer weights, the hidden layer bias,
+    // the output layer weights and output layer bias.
+    public NeuralNetwork(int numInputs, int numHidden, int numOutputs, List<Double> hiddenLayerWeights, Double hiddenLayerBias,
+                         List<Double> outputLayerWeights, Double outputLayerBias) {
+        // How many inputs to this neural network
+        this.numInputs = numInputs;
+
+        network = new DenseNetwork(numInputs, numHidden, numOutputs, new Random());
+        if (hiddenLayerBias != null) {
+            Arrays.fill(network.hiddenBiases, hiddenLayerBias);
+        }
+        if (outputLayerBias != null) {
+            Arrays.fill(network.outputBiases, outputLayerBias);
+        }
+
+        initWeightsFromInputsToHiddenLayerNeurons(hiddenLayerWeights);
+
+        initWeightsFromHiddenLayerNeuronsToOutputLayerNeurons(outputLayerWeights);
+    }
+
+    // Wrap an existing dense network, for example one restored from a checkpoint.
+    NeuralNetwork(DenseNetwork network) {
+        this.numInputs = network.numInputs;
+        this.network = network;
+    }
+
+    // The hidden layer neurons have weights that are assigned here. If the actual weights are not
+    // provided, the random weights generated by the dense network are kept.
+    public void initWeightsFromInputsToHiddenLayerNeurons(List<Double> hiddenLayerWeights) {
+        if (hiddenLayerWeights == null) {
+            return;
+        }
+        for (int w = 0; w < network.hiddenWeights.length; w++) {
+            network.hiddenWeights[w] = hiddenLayerWeights.get(w);
+        }
+    }
+
+    // The output layer neurons have weights that are assigned here. If the actual weights are not
+    // provided, the random weights generated by the dense network are kept.
+    public void initWeightsFromHiddenLayerNeuronsToOutputLayerNeurons(List<Double> outputLayerWeights) {
+        if (outputLayerWeights == null) {
+            return;
+        }
+        for (int w = 0; w < network.outputWeights.length; w++) {
+            network.outputWeights[w] = outputLayerWeights.get(w);
+        }
+    }
+
+    // Build a NeuronLayer holding a copy of one layer of the dense network, for display.
+    private static NeuronLayer toNeuronLayer(double[] weights, double[] biases, int numWeights) {
+        NeuronLayer layer = new NeuronLayer(biases.length, biases.length == 0 ? 0.0 : biases[0]);
+        for (int n = 0; n < biases.length; n++) {
+            for (int w = 0; w < numWeights; w++) {
+                layer.neurons.get(n).weights.add(weights[n * numWeights + w]);
+            }
+        }
+        return layer;
+    }
+
+    // Display a NeuralNetwork object by calling the toString on each layer.
+    public String toString() {
+        String s = "";
+        s = s + "-----\n";
+        s = s + "* Inputs: " + numInputs + "\n";
+        s = s + "-----\n";
+
+        s = s + "Hidden Layer\n";
+        s = s + toNeuronLayer(network.hiddenWeights, network.hiddenBiases, network.numInputs).toString();
+        s = s + "----";
+        s = s + "* Output layer\n";
+        s = s + toNeuronLayer(network.outputWeights, network.outputBiases, network.numHidden).toString();
+        s = s + "-----";
+        return s;
+    }
+
+    // Convert a list of boxed values into a primitive array.
+    static double[] toArray(List<Double> values) {
+        double[] array = new double[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    // Feed the inputs provided into the network and get outputs.
+    // The inputs are provided to the hidden layer. The hidden layer's outputs
+    // are provided as inputs the output layer. The outputs of the output layer
+    // are returned to the caller as a list of outputs. That number of outputs may be one.
+    public List<Double> feedForward(List<Double> inputs) {
+        double[] outputs = network.feedForward(toArray(inputs));
+        List<Double> outputList = new ArrayList<Double>(outputs.length);
+        for (double output : outputs) {
+            outputList.add(output);
+        }
+        return outputList;
+    }
+
+    // Feed primitive inputs through the network. The returned array is reused by the next call.
+    public double[] feedForward(double[] inputs) {
+        return network.feedForward(inputs);
+    }
+
+    // Training means to feed the data forward - forward propagation. Compare the result with the target(s), and
+    // use backpropagation to update the weights. See the blog post to review the math.
+    public void train(List<Double> trainingInputs, List<Double> trainingOutputs) {
+        network.train(toArray(trainingInputs), toArray(trainingOutputs));
+    }
+
+    // Feed primitive inputs through the network using buffers private to this call.
+    // This only reads the weights, so any number of threads may evaluate at once.
+    public double[] evaluate(double[] inputs) {
+        return network.feedForward(inputs, network.newActivations());
+    }
+
+    // Feed a batch of input rows through the network in one pass and return the outputs,
+    // numOutputs values per row. Like evaluate, this only reads the weights.
+    public double[] evaluateBatch(double[][] inputs) {
+        double[] flatInputs = new double[inputs.length * network.numInputs];
+        for (int r = 0; r < inputs.length; r++) {
+            System.arraycopy(inputs[r], 0, flatInputs, r * network.numInputs, network.numInputs);
+        }
+        double[] outputs = new double[inputs.length * network.numOutputs];
+        network.feedForwardBatch(flatInputs, inputs.length, new double[inputs.length * network.numHidden], outputs);
+        return outputs;
+    }
+
+    // Perform one training step on primitive arrays without any boxing or allocation.
+    // Returns the error of the row before the step.
+    public double train(double[] trainingInputs, double[] trainingOutputs) {
+        return network.train(trainingInputs, trainingOutputs);
+    }
+
+    // Perform a feed forward for each training row and total the error.
+    public double calculateTotalError(ArrayList<Double[][]> trainingSets) {
+        double[][] inputs = new double[trainingSets.size()][];
+        double[][] outputs = new double[trainingSets.size()][];
+        for (int t = 0; t < trainingSets.size(); t++) {
+            inputs[t] = toArray(Arrays.asList(trainingSets.get(t)[0]));
+            outputs[t] = toArray(Arrays.asList(trainingSets.get(t)[1]));
+        }
+        return network.calculateTotalError(inputs, outputs);
+    }
+
+    // Perform a feed forward for each primitive training row and total the error.
+    public double calculateTotalError(double[][] trainingInputs, double[][] trainingOutputs) {
+        return network.calculateTotalError(trainingInputs, trainingOutputs);
+    }
+}
@@ -5,29 +5,39 @@ import com.google.gson.stream.JsonReader;
 
 import java.io.IOException;
 import java.io.StringReader;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 public class NeuralNetworkClient {
     // Read the user input with a Scanner.
     static Scanner scanner = new Scanner(System.in);
     static Gson gson = new Gson();
+    // The id of the server-side model to use, from the nn.model system property. Null uses the default model.
+    String model = System.getProperty("nn.model");
+    boolean binary = "binary".equals(System.getProperty("nn.protocol"));
+    // The id of the last background training job started by this client.
+    String lastJobId;
 
     void sendRequest(String host, int port) {
         System.out.println("The client is running.");
-        DatagramSocket aSocket = null;
+        RequestDispatcher dispatcher = null;
         try {
             InetAddress aHost = InetAddress.getByName(host);
-//            Create a socket
-            aSocket = new DatagramSocket();
+//            Create a dispatcher, which owns the socket and retransmits requests that get no reply
+            dispatcher = RequestDispatcher.fromSystemProperties(aHost, port);
 //          Display the menu and get the user input
             int userSelection = menu();
-            while (userSelection != 5) {
-//                Initialize the payload to an empty string
-                String payload = new Gson().toJson("");
+            while (userSelection != 12) {
+//                Initialize the payload to an empty request
+                HashMap<String, Object> payload = newPayload();
                 switch (userSelection) {
                     case 0: // display the truth table
                         payload = getTruthTablePayload();
@@ -56,19 +66,70 @@ public class NeuralNetworkClient {
                         double input1 = scanner.nextDouble();
                         payload = testWithPair(input0, input1);
                         break;
+                    case 5: // test with a batch of input pairs.
+                        System.out.println("Enter the number of pairs, then the pairs of doubles.");
+                        double[][] inputs = new double[scanner.nextInt()][];
+                        for (int r = 0; r < inputs.length; r++) {
+                            inputs[r] = new double[]{scanner.nextDouble(), scanner.nextDouble()};
+                        }
+                        double[] outputs = testBatch(dispatcher, inputs);
+                        for (int r = 0; r < outputs.length; r++) {
+                            System.out.println(inputs[r][0] + "  " + inputs[r][1] + "  -> " + outputs[r]);
+                        }
+//                        The batch has been sent and answered already
+                        payload = null;
+                        break;
+                    case 6: // start n training steps in the background.
+                        System.out.println("Enter the number of training sets.");
+                        payload = trainAsync(scanner.nextInt());
+                        break;
+                    case 7: // show the progress of the last background training job.
+                        payload = trainStatus(lastJobId);
+                        break;
+                    case 8: // cancel the last background training job.
+                        payload = trainCancel(lastJobId);
+                        break;
+                    case 9: // download and display the weights of the network.
+                        payload = getWeightsPayload();
+                        break;
+                    case 10: // upload a training set from a CSV file.
+                        System.out.println("Enter the path of a CSV file with one training row per line, then the number of inputs per row.");
+                        String path = scanner.next();
+                        int numInputs = scanner.nextInt();
+                        try {
+                            payload = readTrainingSet(Paths.get(path), numInputs);
+                        } catch (IOException | IllegalArgumentException e) {
+                            System.out.println("Cannot read the training set: " + e.getMessage());
+                            payload = null;
+                        }
+                        break;
+                    case 11: // train many candidate networks and keep the best.
+                        System.out.println("Enter the number of seeds to try with each hidden width and learning rate.");
+                        payload = sweep(scanner.nextInt());
+                        break;
                     default:
                         System.out.println("Error in input. Please choose an integer from the main menu.");
                         break;
                 }
-                byte[] m = payload.getBytes();
-                DatagramPacket request = new DatagramPacket(m, m.length, aHost, port);
-                aSocket.send(request);
-
-                byte[] buffer = new byte[1000];
-                DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
-                aSocket.receive(reply);
-                String replyString = new String(reply.getData()).trim();
-                this.parseResponse(replyString);
+                if (payload != null) {
+                    int requestId = dispatcher.nextRequestId();
+                    byte[] reply;
+                    try {
+                        reply = dispatcher.request(requestId, encode(payload, requestId));
+                    } catch (SocketTimeoutException e) {
+                        System.out.println("The server did not answer: " + e.getMessage());
+                        userSelection = menu();
+                        continue;
+                    }
+                    ByteBuffer replyBuffer = ByteBuffer.wrap(reply);
+                    if (BinaryProtocol.isBinary(replyBuffer)) {
+//                        Display binary replies with the same code as JSON replies
+                        this.parseResponse(gson.toJson(BinaryProtocol.decodeResponse(replyBuffer)));
+                    } else {
+                        String replyString = new String(reply).trim();
+                        this.parseResponse(replyString);
+                    }
+                }
                 userSelection = menu();
             }
             System.out.println("UDP Client side quitting");
@@ -76,43 +137,192 @@ public class NeuralNetworkClient {
         } catch (SocketException e) {System.out.println("Socket Exception: " + e.getMessage());
         }catch (IOException e){System.out.println("IO Exception: " + e.getMessage());
         }finally {
-            if(aSocket != null) aSocket.close();
+            if(dispatcher != null) dispatcher.close();
         }
     }
 
-//    Creates request payload for requesting the truth table server is currently using.
-    String getTruthTablePayload() {
+//    Serializes a request payload. With the nn.protocol=binary system property requests are sent in the
+//    compact BinaryProtocol format, otherwise as JSON. Requests the binary format cannot carry, such as
+//    types without an opcode and train requests for Hogwild workers or a target error, are always JSON.
+//    The request id goes in the binary header, or in a JSON requestId field.
+    byte[] encode(HashMap<String, Object> payload, int requestId) {
+        if (binary && BinaryProtocol.canEncode(payload)) {
+            ByteBuffer out = ByteBuffer.allocate(1000);
+            BinaryProtocol.encodeRequest(out, requestId, payload);
+            return Arrays.copyOf(out.array(), out.position());
+        }
+        payload.put("requestId", requestId);
+        return gson.toJson(payload).getBytes();
+    }
+
+//    Creates an empty request payload addressed to this client's model.
+    HashMap<String, Object> newPayload() {
         HashMap<String, Object> payload = new HashMap<>();
+        if (model != null) {
+            payload.put("model", model);
+        }
+        return payload;
+    }
+
+//    Creates request payload for requesting the truth table server is currently using.
+    HashMap<String, Object> getTruthTablePayload() {
+        HashMap<String, Object> payload = newPayload();
         payload.put("request","getCurrentRange");
-        return gson.toJson(payload);
+        return payload;
     }
 
 //    Creates request payload for setting the truth table server is currently using.
-    String createTruthTablePayload(Double a, Double b, Double c, Double d) {
-        HashMap<String, Object> payload = new HashMap<>();
+    HashMap<String, Object> createTruthTablePayload(Double a, Double b, Double c, Double d) {
+        HashMap<String, Object> payload = newPayload();
         payload.put("request","setCurrentRange");
         payload.put("val1",a);
         payload.put("val2",b);
         payload.put("val3",c);
         payload.put("val4",d);
-        return gson.toJson(payload);
+        return payload;
     }
 
 //    Creates request payload for performing n training steps.
-    String train(int iterations){
-        HashMap<String, Object> payload = new HashMap<>();
+    HashMap<String, Object> train(int iterations){
+        HashMap<String, Object> payload = newPayload();
         payload.put("request","train");
         payload.put("iterations",iterations);
-        return gson.toJson(payload);
+        return payload;
+    }
+
+//    Tests a batch of input rows and returns one output per row. The rows are sent in chunks that each fit
+//    in a single datagram and in the server's batch limit. All chunks are sent before any reply is awaited,
+//    so the batch costs about one round trip.
+    double[] testBatch(RequestDispatcher dispatcher, double[][] inputs) throws IOException {
+        List<CompletableFuture<byte[]>> replies = new ArrayList<>();
+        List<Integer> counts = new ArrayList<>();
+        int row = 0;
+        while (row < inputs.length) {
+            int count = Math.min(NeuralNetworkServer.MAX_TEST_BATCH, inputs.length - row);
+            int requestId = dispatcher.nextRequestId();
+            byte[] m = encode(testBatchPayload(Arrays.copyOfRange(inputs, row, row + count)), requestId);
+            while (m.length > 1000 && count > 1) {
+                count--;
+                m = encode(testBatchPayload(Arrays.copyOfRange(inputs, row, row + count)), requestId);
+            }
+            replies.add(dispatcher.send(requestId, m));
+            counts.add(count);
+            row += count;
+        }
+        double[] outputs = new double[inputs.length];
+        row = 0;
+        for (int c = 0; c < replies.size(); c++) {
+            byte[] reply;
+            try {
+                reply = replies.get(c).get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException("The server did not answer the batch", e);
+            }
+            ByteBuffer replyBuffer = ByteBuffer.wrap(reply);
+            double[] chunk;
+            if (BinaryProtocol.isBinary(replyBuffer)) {
+                chunk = (double[]) BinaryProtocol.decodeResponse(replyBuffer).get("outputs");
+            } else {
+                chunk = gson.fromJson(new String(reply), TestBatchResponse.class).outputs;
+            }
+            if (chunk == null || chunk.length != counts.get(c)) {
+                throw new IOException("The server did not answer the batch");
+            }
+            System.arraycopy(chunk, 0, outputs, row, chunk.length);
+            row += chunk.length;
+        }
+        return outputs;
+    }
+
+//    Creates request payload for testing the neural network with a batch of input rows.
+    HashMap<String, Object> testBatchPayload(double[][] inputs){
+        HashMap<String, Object> payload = newPayload();
+        payload.put("request","testBatch");
+        payload.put("inputs",inputs);
+        return payload;
+    }
+
+//    Creates request payload for starting n training steps in the background.
+    HashMap<String, Object> trainAsync(int iterations){
+        HashMap<String, Object> payload = newPayload();
+        payload.put("request","trainAsync");
+        payload.put("iterations",iterations);
+        return payload;
+    }
+
+//    Creates request payload for reading the progress of a background training job.
+    HashMap<String, Object> trainStatus(String jobId){
+        HashMap<String, Object> payload = newPayload();
+        payload.put("request","trainStatus");
+        payload.put("jobId",jobId);
+        return payload;
+    }
+
+//    Creates request payload for cancelling a background training job.
+    HashMap<String, Object> trainCancel(String jobId){
+        HashMap<String, Object> payload = newPayload();
+        payload.put("request","trainCancel");
+        payload.put("jobId",jobId);
+        return payload;
+    }
+
+//    Creates request payload for a sweep of the given number of seeds with the server's default widths and learning rates.
+    HashMap<String, Object> sweep(int seeds){
+        HashMap<String, Object> payload = newPayload();
+        payload.put("request","sweep");
+        payload.put("seeds",seeds);
+        return payload;
+    }
+
+//    Creates request payload for downloading all weights and biases of the network.
+    HashMap<String, Object> getWeightsPayload(){
+        HashMap<String, Object> payload = newPayload();
+        payload.put("request","getWeights");
+        return payload;
+    }
+
+//    Creates request payload for replacing the training set and building a network with the given hidden layer size.
+//    Large training sets are sent in fragments.
+    HashMap<String, Object> setTrainingSet(double[][] inputs, double[][] outputs, Integer hidden){
+        HashMap<String, Object> payload = newPayload();
+        payload.put("request","setTrainingSet");
+        payload.put("inputs",inputs);
+        payload.put("outputs",outputs);
+        if (hidden != null) {
+            payload.put("hidden",hidden);
+        }
+        return payload;
+    }
+
+//    Reads a training set from a CSV file. Each line holds the inputs of one row followed by its outputs.
+    HashMap<String, Object> readTrainingSet(Path file, int numInputs) throws IOException {
+        List<double[]> inputs = new ArrayList<>();
+        List<double[]> outputs = new ArrayList<>();
+        for (String line : Files.readAllLines(file)) {
+            if (line.isBlank()) {
+                continue;
+            }
+            String[] fields = line.split(",");
+            if (fields.length <= numInputs) {
+                throw new IllegalArgumentException("The row \"" + line + "\" has no outputs");
+            }
+            double[] row = new double[fields.length];
+            for (int f = 0; f < fields.length; f++) {
+                row[f] = Double.parseDouble(fields[f].trim());
+            }
+            inputs.add(Arrays.copyOfRange(row, 0, numInputs));
+            outputs.add(Arrays.copyOfRange(row, numInputs, row.length));
+        }
+        return setTrainingSet(inputs.toArray(new double[0][]), outputs.toArray(new double[0][]), null);
     }
 
 //    Creates request payload for testing the neural network with a pair of inputs.
-    String testWithPair(double input0, double input1){
-        HashMap<String, Object> payload = new HashMap<>();
+    HashMap<String, Object> testWithPair(double input0, double input1){
+        HashMap<String, Object> payload = newPayload();
         payload.put("request","test");
         payload.put("val1",input0);
         payload.put("val2",input1);
-        return gson.toJson(payload);
+        return payload;
     }
 
 //    Displays the menu and gets the user input.
@@ -123,11 +333,27 @@ public class NeuralNetworkClient {
         System.out.println("2. Perform a single training step.");
         System.out.println("3. Perform n training steps. 10000 is a typical value for n.");
         System.out.println("4. Test with a pair of inputs.");
-        System.out.println("5. Exit program.");
+        System.out.println("5. Test with a batch of input pairs.");
+        System.out.println("6. Start n training steps in the background.");
+        System.out.println("7. Show the progress of the background training.");
+        System.out.println("8. Cancel the background training.");
+        System.out.println("9. Display the weights of the network.");
+        System.out.println("10. Upload a training set from a CSV file.");
+        System.out.println("11. Sweep seeds, hidden widths and learning rates, and keep the best network.");
+        System.out.println("12. Exit program.");
         return scanner.nextInt();
     }
 
     public static void main(String args[]) {
+        // "load" followed by options runs the headless load generator instead of the menu.
+        if (args.length > 0 && args[0].equals("load")) {
+            try {
+                LoadGenerator.fromArgs(Arrays.copyOfRange(args, 1, args.length)).run();
+            } catch (IOException | InterruptedException | IllegalArgumentException e) {
+                System.out.println("Load generator: " + e.getMessage());
+            }
+            return;
+        }
         System.out.println("Enter the port number to connect to:");
         int serverPort = Integer.parseInt(scanner.nextLine());
         System.out.println();
@@ -165,6 +391,78 @@ public class NeuralNetworkClient {
             this.val1 = val1;
         }
     }
+    class TrainResponse extends TrainTestResponse {
+        // The steps run and, for requests with a target error, whether it was reached.
+        Integer steps;
+        Boolean converged;
+        public TrainResponse(String response, String val1) {
+            super(response, val1);
+        }
+    }
+    class TestBatchResponse extends Response {
+        double[] outputs;
+        public TestBatchResponse(String response, double[] outputs) {
+            super(response);
+            this.outputs = outputs;
+        }
+    }
+    class GetWeightsResponse extends Response {
+        int numInputs;
+        int numHidden;
+        int numOutputs;
+        double learningRate;
+        double[] hiddenWeights;
+        double[] outputWeights;
+        double[] hiddenBiases;
+        double[] outputBiases;
+        public GetWeightsResponse(String response) {
+            super(response);
+        }
+    }
+    class TrainingSetResponse extends Response {
+        Integer rows;
+        public TrainingSetResponse(String response, Integer rows) {
+            super(response);
+            this.rows = rows;
+        }
+    }
+    class SweepResponse extends Response {
+        SweepCandidate best;
+        Boolean installed;
+        Integer rounds;
+        Long totalSteps;
+        Double seconds;
+        SweepCandidate[] candidates;
+        public SweepResponse(String response) {
+            super(response);
+        }
+    }
+    class SweepCandidate {
+        long seed;
+        int hidden;
+        double learningRate;
+        double error;
+        int steps;
+        boolean converged;
+    }
+    class BusyResponse extends Response {
+        Long retryAfterMillis;
+        public BusyResponse(String response) {
+            super(response);
+        }
+    }
+    class TrainingJobResponse extends Response {
+        String jobId;
+        String state;
+        Integer steps;
+        Integer iterations;
+        Double error;
+        Double stepsPerSecond;
+        public TrainingJobResponse(String response, String jobId) {
+            super(response);
+            this.jobId = jobId;
+        }
+    }
 //    Parses the response from the server and displays it to the user.
     void parseResponse(String responseString) {
         JsonReader reader = new JsonReader(new StringReader(responseString));
@@ -174,19 +472,69 @@ public class NeuralNetworkClient {
         switch (typeResponse) {
             case "getCurrentRange":
                 GetCurrentRangeResponse getCurrentRangeResponse = gson.fromJson(responseString, GetCurrentRangeResponse.class);
+                if (getCurrentRangeResponse.val1 == null) {
+                    System.out.println("The current training set is not a truth table; it has "
+                            + gson.fromJson(responseString, TrainingSetResponse.class).rows + " rows.");
+                    break;
+                }
                 System.out.println("The current truth table is: " + getCurrentRangeResponse.val1 + " " + getCurrentRangeResponse.val2 + " " + getCurrentRangeResponse.val3 + " " + getCurrentRangeResponse.val4);
                 break;
             case "setCurrentRange":
                 System.out.println("The new truth table is updated.");
                 break;
+            case "setTrainingSet":
+                TrainingSetResponse trainingSetResponse = gson.fromJson(responseString, TrainingSetResponse.class);
+                System.out.println("The new training set of " + trainingSetResponse.rows + " rows is installed.");
+                break;
+            case "getWeights":
+                GetWeightsResponse weights = gson.fromJson(responseString, GetWeightsResponse.class);
+//                Rebuild the network locally to display it the same way as the server does
+                DenseNetwork network = new DenseNetwork(weights.numInputs, weights.numHidden, weights.numOutputs);
+                network.learningRate = weights.learningRate;
+                System.arraycopy(weights.hiddenWeights, 0, network.hiddenWeights, 0, network.hiddenWeights.length);
+                System.arraycopy(weights.outputWeights, 0, network.outputWeights, 0, network.outputWeights.length);
+                System.arraycopy(weights.hiddenBiases, 0, network.hiddenBiases, 0, network.hiddenBiases.length);
+                System.arraycopy(weights.outputBiases, 0, network.outputBiases, 0, network.outputBiases.length);
+                System.out.println(new NeuralNetwork(network));
+                break;
             case "train":
-                TrainTestResponse trainResponse = gson.fromJson(responseString, TrainTestResponse.class);
+                TrainResponse trainResponse = gson.fromJson(responseString, TrainResponse.class);
                 System.out.println("After this step the error is: " + trainResponse.val1);
+                if (trainResponse.converged != null) {
+                    System.out.println((trainResponse.converged ? "Reached" : "Did not reach") + " the target error in "
+                            + trainResponse.steps + " steps.");
+                }
                 break;
             case "test":
                 TrainTestResponse testResponse = gson.fromJson(responseString, TrainTestResponse.class);
                 System.out.println("The range value is approximately: " + testResponse.val1);
                 break;
+            case "sweep":
+                SweepResponse sweepResponse = gson.fromJson(responseString, SweepResponse.class);
+                SweepCandidate best = sweepResponse.best;
+                System.out.println("Trained " + sweepResponse.candidates.length + " candidates for " + sweepResponse.totalSteps
+                        + " steps in " + sweepResponse.rounds + " rounds, " + sweepResponse.seconds + " s.");
+                System.out.println("The best has seed " + best.seed + ", " + best.hidden + " hidden neurons and learning rate "
+                        + best.learningRate + ": error " + best.error + " after " + best.steps + " steps"
+                        + (best.converged ? ", converged." : ", not converged."));
+                System.out.println(sweepResponse.installed ? "It is now the active network."
+                        : "It was not installed, because the training set changed during the sweep.");
+                break;
+            case "trainAsync":
+                TrainingJobResponse startResponse = gson.fromJson(responseString, TrainingJobResponse.class);
+                lastJobId = startResponse.jobId;
+                System.out.println("Training job " + lastJobId + " started.");
+                break;
+            case "trainStatus":
+            case "trainCancel":
+                TrainingJobResponse job = gson.fromJson(responseString, TrainingJobResponse.class);
+                System.out.println("Training job " + job.jobId + " is " + job.state + ": " + job.steps + " of " + job.iterations
+                        + " steps, error " + job.error + ", " + Math.round(job.stepsPerSecond) + " steps/s.");
+                break;
+            case "Busy":
+                BusyResponse busyResponse = gson.fromJson(responseString, BusyResponse.class);
+                System.out.println("The server is busy. Please try again in " + busyResponse.retryAfterMillis + " ms.");
+                break;
             default:
                 System.out.println("Unknown response type: " + typeResponse);
                 break;
@@ -32,293 +32,1233 @@ The program is not written to handle input errors. We assume that the user behav
  */
 
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
 import com.google.gson.stream.JsonReader;
 
 import java.io.IOException;
+import java.io.Reader;
 import java.io.StringReader;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 
-// Each Neuron has a bias, a list of weights, and a list of inputs.
-// Each neuron will produce a single real number as an output.
-class Neuron {
-    private double bias;
-    public List<Double> weights;
-    public List<Double> inputs;
-    double output;
-    // Construct a neuron with a bias and reserve memory for its weights.
-    public Neuron(double bias) {
-        this.bias = bias;
-        weights = new ArrayList<Double>();
-    }
-    //Calculate the output by using the inputs and weights already provided.
-    //Squash the result so the output is between 0 and 1.
-    public double calculateOutput(List<Double> inputs) {
+public class NeuralNetworkServer {
 
-        this.inputs = inputs;
+    Gson gson = new Gson();
+    Random rand = new Random();
 
-        output = squash(calculateTotalNetInput());
-        return output;
-    }
-    // Compute the total net input from the input, weights, and bias.
-    public double calculateTotalNetInput() {
+    // Saves and restores models when the nn.checkpoint.dir system property is set, otherwise null.
+    Checkpoints checkpoints = Checkpoints.fromSystemProperties();
 
-        double total = 0.0;
-        for (int i = 0; i < inputs.size(); i++) {
-            total += inputs.get(i) * weights.get(i);
-        }
-        return total + bias;
-    }
+    // Training runs started with trainAsync.
+    TrainingJobs trainingJobs = TrainingJobs.fromSystemProperties();
 
-    // This is the activation function, returning a value between 0 and 1.
-    public double squash(double totalNetInput) {
-        double v = 1.0 / (1.0 + Math.exp(-1.0 * totalNetInput));
-        return v;
-    }
-    // Compute the partial derivative of the error with respect to the total net input.
-    public Double calculatePDErrorWRTTotalNetInput(double targetOutput) {
-        return calculatePDErrorWRTOutput(targetOutput) * calculatePDTotalNetInputWRTInput();
-    }
-    // Calculate error. How different are we from the target?
-    public Double calculate_error(Double targetOutput) {
-        double theError = 0.5 * Math.pow(targetOutput - output, 2.0);
-        return theError;
-    }
-    // Compute the partial derivative of the error with respect to the output.
-    public Double calculatePDErrorWRTOutput(double targetOutput) {
-        return (-1) * ( targetOutput - output);
-    }
-    // Compute the partial derivative of the total net input with respect to the input.
-    public Double  calculatePDTotalNetInputWRTInput() {
-        return output * ( 1.0 - output);
+    // The most rows in one testBatch request. The JSON response for this many outputs still fits
+    // in the 1000 byte datagram buffer; clients split larger batches.
+    static final int MAX_TEST_BATCH = 36;
 
-    }
-    // Calculate the partial derivative of the total net input with respect to the weight.
-    public Double calculatePDTotalNetInputWRTWeight(int index) {
-        return inputs.get(index);
-    }
-}
+    // The most neurons in the hidden layer of a network built by setTrainingSet.
+    static final int MAX_HIDDEN = 4096;
 
-// The Neuron layer represents a collection of neurons.
-// All neurons in the same layer have the same bias.
-// We include in each layer the number of neurons and the list of neurons.
-class NeuronLayer {
-    private double bias;
-    private int numNeurons;
+    // The most threads of a pool a request creates for itself, one per core.
+    static final int MAX_POOL_THREADS = Runtime.getRuntime().availableProcessors();
 
-    public List<Neuron> neurons;
+    // The most candidate networks a sweep request may train.
+    static final int MAX_SWEEP_CANDIDATES = 1024;
 
-    // Construct by specifying the number of neurons and the bias that applies to all the neurons in this layer.
-    // If the bias is not provided, choose a random bias.
-    // Create neurons for this layer and set the bias in each neuron.
-    public NeuronLayer(int numNeurons, Double bias) {
-        if(bias == null) {
+    // The request types the server handles. Only these get a latency histogram.
+    static final Set<String> REQUEST_TYPES = Set.of("getCurrentRange", "setCurrentRange", "train", "test", "testBatch",
+            "trainAsync", "trainStatus", "trainCancel", "checkpoint", "getModelStats", "stats", "getWeights",
+            "setTrainingSet", "clusterStatus", "clusterJoin", "clusterLeave", "clusterUpdate", "clusterHandoff",
+            "replicaSubscribe", "replicationStatus", "sweep", "compile");
 
-            this.bias = new Random().nextDouble();
-        }
-        else {
-            this.bias = bias;
-        }
-        this.numNeurons = numNeurons;
-        this.neurons  = new ArrayList<Neuron>();
-        for(int i = 0; i < numNeurons; i++) {
-            this.neurons.add(new Neuron(this.bias));
-        }
-    }
-    // Display the neuron layer by displaying each neuron.
-    public String toString() {
-        String s = "";
-        s = s + "Neurons: " + neurons.size() + "\n";
-        for(int n = 0; n < neurons.size(); n++) {
-            s = s + "Neuron " + n + "\n";
-            for (int w = 0; w < neurons.get(n).weights.size(); w++) {
-                s = s + "\tWeight: " + neurons.get(n).weights.get(w) + "\n";
-            }
-            s = s + "\tBias " + bias + "\n";
-        }
+    // Steps between error checks when a train request sets a targetError but no checkInterval.
+    static final int DEFAULT_CHECK_INTERVAL = 100;
 
-        return s;
-    }
-
-    // Feed the input data into the neural network and produce some output in the output layer.
-    // Return a list of outputs. There may be a single output in the output list.
-    List<Double> feedForward(List<Double> inputs) {
+    // Training publishes a snapshot of the weights for test requests after this many steps.
+    static final int SNAPSHOT_STEPS = Math.max(1, Integer.getInteger("nn.snapshot.steps", 1000));
 
-        List<Double> outputs = new ArrayList<Double>();
+    // Request counters, latency histograms and traffic totals, served by the stats request.
+    final ServerMetrics metrics = new ServerMetrics();
 
-        for(Neuron neuron : neurons ) {
+    // Recent responses by sender and request id, to answer retransmitted requests without performing them again.
+    final DuplicateCache<String> jsonReplies = DuplicateCache.fromSystemProperties();
+    final DuplicateCache<byte[]> binaryReplies = DuplicateCache.fromSystemProperties();
 
-            outputs.add(neuron.calculateOutput(inputs));
-        }
+    // The requests with an id that are queued or running in the concurrent and NIO modes, so that a
+    // retransmission of one is dropped before it takes a worker.
+    private final Set<PendingRequest> pending = ConcurrentHashMap.newKeySet();
 
-        return outputs;
-    }
-    // Return a list of outputs from this layer.
-    // We do this by gathering the output of each neuron in the layer.
-    // This is returned as a list of Doubles.
-    // This is not used in this program.
-    List<Double> getOutputs() {
-        List<Double> outputs = new ArrayList<Double>();
-        for(Neuron neuron : neurons ) {
-            outputs.add(neuron.output);
-        }
-        return outputs;
+    private record PendingRequest(SocketAddress sender, boolean binary, int requestId) {
     }
-}
 
-// The NeuralNetwork class represents two layers of neurons - a hidden layer and an output layer.
-// We also include the number of inputs and the learning rate.
-// The learning rate determines the step size by which the network’s weights are
-// updated during each iteration of training. This is typically chosen experimentally.
+    // Reassembles requests sent in fragments and numbers the fragmented responses.
+    final Fragments fragments = Fragments.fromSystemProperties();
 
-public class NeuralNetworkServer {
+    // The models of all sessions. Requests without a model id share the default model.
+    ModelRegistry models = ModelRegistry.fromSystemProperties();
 
-    NeuralNetwork neuralNetwork = new NeuralNetwork(2, 5, 1, null, null, null, null);
-    Gson gson = new Gson();
-    Random rand = new Random();
-    List<Double> userTrainingInputs;
-    List<Double> userTrainingOutputs;
+    // Shares the models with other servers when cluster mode is configured, otherwise null.
+    Cluster cluster;
+
+    // Sends the weights to the replicas that subscribe to this server. Set in main once the server is built.
+    Replicator replicator;
 
-    // Create an initial truth table with all 0's in the range.
-    ArrayList<Double[][]> userTrainingSets = new ArrayList<Double[][]>(Arrays.asList(
-            new Double[][]{{0.0, 0.0}, {0.0}},
-            new Double[][]{{0.0, 1.0}, {0.0}},
-            new Double[][]{{1.0, 0.0}, {0.0}},
-            new Double[][]{{1.0, 1.0}, {0.0}}));
+    // Applies the primary's updates when this server is a read-only replica, otherwise null.
+    Replication replication;
 
+    // Rate limits senders and queues requests by priority before they are parsed.
+    final AdmissionControl admission = AdmissionControl.fromSystemProperties();
+
+    // Sequential mode: receive, handle and reply to one datagram at a time on this thread.
     void listen(int port){
-        System.out.println("Server started");
+        Log.info("Server started");
         DatagramSocket aSocket = null;
         try{
             aSocket = new DatagramSocket(port);
+            aSocket.setReceiveBufferSize(Fragments.RECEIVE_BUFFER);
             while(true){
                 // Create a datagram packet to receive the request
                 byte[] buffer = new byte[1000];
                 DatagramPacket request = new DatagramPacket(buffer, buffer.length);
                 // Receive the request from the client
                 aSocket.receive(request);
-                // Send the reply to the client
-                String requestString = new String(request.getData()).trim();
-                String responseString = this.parseRequest(requestString);
-                System.out.println("Sending response: " + responseString);
-                System.out.println();
-                byte[] responseData = responseString.getBytes();
-//                Create a datagram packet to send the reply
-                DatagramPacket response = new DatagramPacket(responseData,
-                        responseData.length, request.getAddress(), request.getPort());
-                aSocket.send(response);
+                ByteBuffer datagram = reassemble(request);
+                // Send the reply to the client, or a busy reply if the client is over its rate
+                if (datagram != null && !refuseOverRate(aSocket, request, datagram)) {
+                    respond(aSocket, request, datagram);
+                }
+            }
+        }catch (SocketException e){Log.error("Socket: " + e.getMessage());
+        }catch (IOException e) {Log.error("IO: " + e.getMessage());
+        }finally {if(aSocket != null) aSocket.close();}
+    }
+
+    // Concurrent mode: this thread only receives datagrams and decides whether to take them on.
+    // Admitted requests are queued by priority and handled by the admission control workers, so a long
+    // training run does not hold up other clients. Replication messages from the primary each get a
+    // virtual thread; other replication messages are dropped.
+    void listenConcurrently(int port){
+        Log.info("Server started in concurrent mode");
+        DatagramSocket aSocket = null;
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            aSocket = new DatagramSocket(port);
+            aSocket.setReceiveBufferSize(Fragments.RECEIVE_BUFFER);
+            DatagramSocket socket = aSocket;
+            while(true){
+                byte[] buffer = new byte[1000];
+                DatagramPacket request = new DatagramPacket(buffer, buffer.length);
+                socket.receive(request);
+                ByteBuffer datagram = reassemble(request);
+                if (datagram == null || refuseOverRate(socket, request, datagram)) {
+                    continue;
+                }
+                Runnable handler = () -> {
+                    try {
+                        respond(socket, request, datagram);
+                    } catch (IOException e) {
+                        Log.error("IO: " + e.getMessage());
+                    }
+                };
+                if (Replication.isReplication(datagram)) {
+                    if (acceptsReplication(request.getSocketAddress())) {
+                        executor.execute(handler);
+                    }
+                    continue;
+                }
+                Runnable busy = () -> sendBusy(socket, request, datagram, admission.retryAfterMillis);
+                if (!submit(datagram, request.getSocketAddress(), handler, busy, () -> { })) {
+                    busy.run();
+                }
             }
-        }catch (SocketException e){System.out.println("Socket: " + e.getMessage());
-        }catch (IOException e) {System.out.println("IO: " + e.getMessage());
+        }catch (SocketException e){Log.error("Socket: " + e.getMessage());
+        }catch (IOException e) {Log.error("IO: " + e.getMessage());
         }finally {if(aSocket != null) aSocket.close();}
     }
 
+    // Count one received datagram and return the request it holds. A fragment is added to its message,
+    // and null is returned until all the message's fragments have arrived.
+    private ByteBuffer reassemble(DatagramPacket request) {
+        metrics.recordReceived(request.getLength());
+        ByteBuffer datagram = ByteBuffer.wrap(request.getData(), 0, request.getLength());
+        if (Fragments.isFragment(datagram)) {
+            byte[] message = fragments.accept(request.getSocketAddress(), datagram);
+            if (message == null) {
+                return null;
+            }
+            // Binary responses are written over the request, so leave room for one datagram.
+            datagram = ByteBuffer.wrap(Arrays.copyOf(message, Math.max(message.length, Fragments.DATAGRAM_SIZE)), 0, message.length);
+        }
+        return datagram;
+    }
+
+    // Answer the request with a busy reply if its sender has used up its token bucket, and return true if so.
+    // Replication messages are not rate limited.
+    private boolean refuseOverRate(DatagramSocket aSocket, DatagramPacket request, ByteBuffer datagram) {
+        if (Replication.isReplication(datagram)) {
+            return false;
+        }
+        long retryAfter = admission.admit(request.getSocketAddress());
+        if (retryAfter == 0) {
+            return false;
+        }
+        sendBusy(aSocket, request, datagram, retryAfter);
+        return true;
+    }
+
+    // True if a replication message from the sender is handled: only a replica handles them, and only from
+    // its primary. Others are dropped on the receiving thread, before they take a thread or any parsing.
+    boolean acceptsReplication(SocketAddress sender) {
+        if (replication != null && replication.fromPrimary(sender)) {
+            return true;
+        }
+        Log.info("Dropping a replication message from ", sender);
+        metrics.recordError();
+        return false;
+    }
+
+    // Send the busy reply to a request admission control refused.
+    private void sendBusy(DatagramSocket aSocket, DatagramPacket request, ByteBuffer datagram, long retryAfterMillis) {
+        byte[] reply = busyReply(datagram, retryAfterMillis);
+        metrics.recordSent(reply.length);
+        try {
+            aSocket.send(new DatagramPacket(reply, reply.length, request.getAddress(), request.getPort()));
+        } catch (IOException e) {
+            Log.error("IO: " + e.getMessage());
+        }
+    }
+
+    // Queue an admitted request for the admission control workers, and return false if its queue is full.
+    // A retransmission of a request that is still queued or running is dropped, and dropped is run: the
+    // reply to the first copy answers it, or else the client's next retransmission is answered from the
+    // duplicate cache. A retransmission of a request already answered only reads the cache, so it is
+    // queued as HIGH and never takes a training worker.
+    boolean submit(ByteBuffer datagram, SocketAddress sender, Runnable handler, Runnable busy, Runnable dropped) {
+        AdmissionControl.Priority priority = AdmissionControl.priority(datagram);
+        boolean binary = BinaryProtocol.isBinary(datagram);
+        int requestId;
+        if (binary) {
+            requestId = BinaryProtocol.header(datagram.duplicate()).requestId();
+        } else if (datagram.hasArray() && datagram.arrayOffset() == 0 && datagram.position() == 0) {
+            requestId = RequestDispatcher.requestId(datagram.array(), datagram.limit());
+        } else {
+            byte[] request = new byte[datagram.remaining()];
+            datagram.duplicate().get(request);
+            requestId = RequestDispatcher.requestId(request, request.length);
+        }
+        if (requestId == 0) {
+            return admission.submit(priority, handler, busy);
+        }
+        PendingRequest key = new PendingRequest(sender, binary, requestId);
+        if (!pending.add(key)) {
+            Log.info("Dropping a retransmission of a request in progress ", requestId);
+            metrics.recordDuplicate();
+            dropped.run();
+            return true;
+        }
+        CompletableFuture<?> earlier = binary ? binaryReplies.get(sender, requestId) : jsonReplies.get(sender, requestId);
+        if (earlier != null && earlier.isDone()) {
+            priority = AdmissionControl.Priority.HIGH;
+        }
+        boolean queued = admission.submit(priority, () -> {
+            try {
+                handler.run();
+            } finally {
+                pending.remove(key);
+            }
+        }, () -> {
+            try {
+                busy.run();
+            } finally {
+                pending.remove(key);
+            }
+        });
+        if (!queued) {
+            pending.remove(key);
+        }
+        return queued;
+    }
+
+    // Encode the busy reply to a request in the request's format, without parsing the request. A JSON
+    // reply carries the request's id, found by scanning the bytes as the clients do.
+    byte[] busyReply(ByteBuffer datagram, long retryAfterMillis) {
+        Log.info("Refusing a request, retry after ", retryAfterMillis);
+        HashMap<String, Object> response = busyResponse(retryAfterMillis);
+        if (BinaryProtocol.isBinary(datagram)) {
+            BinaryProtocol.Decoded header = BinaryProtocol.header(datagram.duplicate());
+            ByteBuffer reply = ByteBuffer.allocate(BinaryProtocol.HEADER_SIZE + 5);
+            BinaryProtocol.encodeResponse(reply, header.opcode(), header.requestId(), response);
+            return reply.array();
+        }
+        byte[] request = new byte[datagram.remaining()];
+        datagram.duplicate().get(request);
+        int requestId = RequestDispatcher.requestId(request, request.length);
+        if (requestId != 0) {
+            response.put("requestId", requestId);
+        }
+        return gson.toJson(response).getBytes();
+    }
+
+    // Handle one request and send the response back to its sender.
+    private void respond(DatagramSocket aSocket, DatagramPacket request, ByteBuffer datagram) throws IOException {
+        if (BinaryProtocol.isBinary(datagram) || Replication.isReplication(datagram)) {
+            if (BinaryProtocol.isBinary(datagram)) {
+                parseBinaryRequest(datagram, request.getSocketAddress());
+            } else {
+                parseReplication(datagram, request.getSocketAddress());
+            }
+            metrics.recordSent(datagram.limit());
+            aSocket.send(new DatagramPacket(datagram.array(), datagram.limit(), request.getAddress(), request.getPort()));
+            return;
+        }
+        String requestString = new String(datagram.array(), 0, datagram.limit()).trim();
+        String responseString;
+        try {
+            responseString = this.parseRequest(requestString, request.getSocketAddress());
+        } catch (RuntimeException e) {
+            Log.warn("Error in input: " + e.getMessage());
+            metrics.recordError();
+            responseString = gson.toJson(errorResponse());
+        }
+        Log.payload("Sending response: ", responseString);
+        byte[] responseData = responseString.getBytes();
+//        Create a datagram packet to send the reply, or one per fragment if it does not fit in one datagram
+        List<byte[]> parts = Fragments.datagrams(responseData, fragments.nextMessageId());
+        for (int p = 0; p < parts.size(); p++) {
+            byte[] part = parts.get(p);
+            metrics.recordSent(part.length);
+            DatagramPacket response = new DatagramPacket(part, part.length, request.getAddress(), request.getPort());
+            aSocket.send(response);
+            Fragments.pace(p);
+        }
+    }
+
+    // Decode a binary request from the buffer and perform it. The buffer is then cleared and the
+    // binary response is written into it, ready to be sent.
+    void parseBinaryRequest(ByteBuffer buffer){
+        parseBinaryRequest(buffer, null);
+    }
+
+    // Decode and perform a binary request from the given sender. A request with a non-zero id that the
+    // sender has already sent is answered from the duplicate cache instead of being performed again.
+    void parseBinaryRequest(ByteBuffer buffer, SocketAddress sender){
+        long started = System.nanoTime();
+        BinaryProtocol.Decoded decoded;
+        try {
+            decoded = BinaryProtocol.decodeRequest(buffer);
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            Log.warn("Error in input: " + e.getMessage());
+            metrics.recordError();
+            BinaryProtocol.Decoded header = BinaryProtocol.header(buffer);
+            buffer.clear();
+            BinaryProtocol.encodeError(buffer, header.opcode(), header.requestId());
+            buffer.flip();
+            return;
+        }
+        Log.info("Received binary request: ", decoded.request().request);
+        CompletableFuture<byte[]> reply = null;
+        if (sender != null && decoded.requestId() != 0) {
+            reply = new CompletableFuture<>();
+            CompletableFuture<byte[]> earlier = binaryReplies.putIfAbsent(sender, decoded.requestId(), reply);
+            if (earlier != null) {
+                Log.info("Answering a retransmitted request ", decoded.requestId());
+                metrics.recordDuplicate();
+                byte[] earlierReply = binaryReplies.await(earlier);
+                buffer.clear();
+                if (earlierReply != null) {
+                    buffer.put(earlierReply);
+                } else {
+                    metrics.recordError();
+                    BinaryProtocol.encodeError(buffer, decoded.opcode(), decoded.requestId());
+                }
+                buffer.flip();
+                return;
+            }
+        }
+        byte[] encoded = null;
+        try {
+            HashMap<String, Object> response;
+            try {
+                response = execute(decoded.request(), sender);
+            } catch (RuntimeException e) {
+                Log.error("Request failed: " + e);
+                metrics.recordError();
+                response = errorResponse();
+            }
+            buffer.clear();
+            try {
+                BinaryProtocol.encodeResponse(buffer, decoded.opcode(), decoded.requestId(), response);
+            } catch (BufferOverflowException e) {
+                Log.error("Response to binary request " + decoded.requestId() + " does not fit in one datagram");
+                metrics.recordError();
+                buffer.clear();
+                BinaryProtocol.encodeError(buffer, decoded.opcode(), decoded.requestId());
+            }
+            buffer.flip();
+            encoded = new byte[buffer.remaining()];
+            buffer.duplicate().get(encoded);
+        } finally {
+            // Complete the future even if the request failed, so retransmissions never wait for it forever.
+            if (reply != null) {
+                if (encoded != null) {
+                    reply.complete(encoded);
+                } else {
+                    binaryReplies.remove(sender, decoded.requestId(), reply);
+                    reply.completeExceptionally(new IllegalStateException("Request " + decoded.requestId() + " failed"));
+                }
+            }
+        }
+        metrics.recordParse("binary", System.nanoTime() - started);
+    }
+
+    // Apply a weight update sent by the primary to this replica. The buffer is then cleared and the
+    // acknowledgement is written into it, ready to be sent.
+    void parseReplication(ByteBuffer buffer, SocketAddress sender){
+        if (replication == null) {
+            Log.warn("Error in input: replica mode is not configured.");
+            metrics.recordError();
+            Replication.reject(buffer);
+            return;
+        }
+        if (!replication.fromPrimary(sender)) {
+            Log.warn("Error in input: replication updates are only accepted from the primary, not " + sender + ".");
+            metrics.recordError();
+            Replication.reject(buffer);
+            return;
+        }
+        replication.apply(buffer);
+    }
+
     // Parse the request string and perform the operation based on the request
-    private String parseRequest(String requestString){
-        System.out.println("Received request: " + requestString);
-//        Create a JsonReader to read the request string with lenient parsing to help with switch
-        JsonReader reader = new JsonReader(new StringReader(requestString));
+    String parseRequest(String requestString){
+        return parseRequest(requestString, null);
+    }
+
+    // Parse the request string from the given sender and perform the operation based on the request
+    String parseRequest(String requestString, SocketAddress sender){
+        Log.payload("Received request: ", requestString);
+        return parseRequest(new StringReader(requestString), sender);
+    }
+
+    // Parse a request from a reader and perform the operation based on the request.
+    String parseRequest(Reader requestReader){
+        return parseRequest(requestReader, null);
+    }
+
+    // Parse a request from a reader and perform the operation based on the request.
+    // The JSON is parsed once into a tree, which is then bound to the class of the request type.
+    // A request with a requestId gets it back in the response. If the sender already sent a request
+    // with that id, it is answered from the duplicate cache instead of being performed again.
+    String parseRequest(Reader requestReader, SocketAddress sender){
+        long started = System.nanoTime();
+//        Create a JsonReader to read the request with lenient parsing to help with switch
+        JsonReader reader = new JsonReader(requestReader);
         reader.setLenient(true);
-        Request request = gson.fromJson(reader, Request.class);
-        switch(request.request){
+        JsonElement json = JsonParser.parseReader(reader);
+        Request request = gson.fromJson(json, Request.class);
+        if (request != null) {
+            request = gson.fromJson(json, requestClass(request.request));
+        }
+        Integer requestId = request == null ? null : request.requestId;
+        CompletableFuture<String> reply = null;
+        if (sender != null && requestId != null) {
+            reply = new CompletableFuture<>();
+            CompletableFuture<String> earlier = jsonReplies.putIfAbsent(sender, requestId, reply);
+            if (earlier != null) {
+                Log.info("Answering a retransmitted request ", requestId);
+                metrics.recordDuplicate();
+                String earlierResponse = jsonReplies.await(earlier);
+                if (earlierResponse != null) {
+                    return earlierResponse;
+                }
+                metrics.recordError();
+                HashMap<String, Object> error = errorResponse();
+                error.put("requestId", requestId);
+                return gson.toJson(error);
+            }
+        }
+        String response = null;
+        try {
+            HashMap<String, Object> result;
+            try {
+                result = execute(request, sender);
+            } catch (RuntimeException e) {
+                Log.error("Request failed: " + e);
+                metrics.recordError();
+                result = errorResponse();
+            }
+            if (requestId != null) {
+                result.put("requestId", requestId);
+            }
+            response = gson.toJson(result);
+        } finally {
+            // Complete the future even if the request failed, for example because the response held a NaN
+            // that cannot be written as JSON, so retransmissions never wait for it forever.
+            if (reply != null) {
+                if (response != null) {
+                    reply.complete(response);
+                } else {
+                    jsonReplies.remove(sender, requestId, reply);
+                    reply.completeExceptionally(new IllegalStateException("Request " + requestId + " failed"));
+                }
+            }
+        }
+        metrics.recordParse("json", System.nanoTime() - started);
+        return response;
+    }
+
+//    The request class that holds the fields of the given request type
+    static Class<? extends Request> requestClass(String requestType){
+        if (requestType == null) {
+            return Request.class;
+        }
+        switch(requestType){
+            case "setCurrentRange":
+                return CreateTruthTableRequest.class;
+            case "train":
+                return TrainingRequest.class;
+            case "test":
+                return TestWithPairRequest.class;
+            case "testBatch":
+                return TestBatchRequest.class;
+            case "setTrainingSet":
+                return TrainingSetRequest.class;
+            case "clusterJoin":
+            case "clusterLeave":
+            case "clusterUpdate":
+            case "replicaSubscribe":
+                return ClusterRequest.class;
+            case "clusterHandoff":
+                return ModelHandoffRequest.class;
+            case "trainAsync":
+                return TrainingRequest.class;
+            case "sweep":
+                return SweepRequest.class;
+            case "compile":
+                return CompileRequest.class;
+            case "trainStatus":
+            case "trainCancel":
+                return TrainingJobRequest.class;
+            default:
+                return Request.class;
+        }
+    }
+
+//    Perform the operation of a parsed request and return the fields of the response.
+//    The caller serializes the response in the format the request arrived in.
+    HashMap<String, Object> execute(Request request, SocketAddress sender){
+        String requestType = request == null || request.request == null ? "" : request.request;
+        long started = System.nanoTime();
+        HashMap<String, Object> response = dispatch(requestType, request, sender);
+        metrics.recordRequest(requestType, System.nanoTime() - started, "OK".equals(response.get("status")),
+                REQUEST_TYPES.contains(requestType));
+        return response;
+    }
+
+//    Call the handler of the request type, or in cluster mode forward the request to the node that owns its model
+    private HashMap<String, Object> dispatch(String requestType, Request request, SocketAddress sender){
+        if (replication != null && !Replication.READ_TYPES.contains(requestType)) {
+            Log.warn("Error in input: a replica only serves " + Replication.READ_TYPES + ".");
+            return errorResponse();
+        }
+        if (cluster != null && !cluster.handlesLocally(requestType, request)) {
+            return cluster.forward(request);
+        }
+        if (cluster == null && requestType.startsWith("cluster")) {
+            Log.warn("Error in input: cluster mode is not configured.");
+            return errorResponse();
+        }
+        switch(requestType){
             case "getCurrentRange":
-                return getCurrentRange();
+                return getCurrentRange(models.getOrCreate(request.model));
             case "setCurrentRange":
-                CreateTruthTableRequest createTruthTableRequest = gson.fromJson(requestString, CreateTruthTableRequest.class);
-                return setCurrentRange(createTruthTableRequest);
+                return setCurrentRange(models.getOrCreate(request.model), (CreateTruthTableRequest) request);
             case "train":
-                TrainingRequest trainingRequest = gson.fromJson(requestString, TrainingRequest.class);
-                return getTrain(trainingRequest);
+                return getTrain(models.getOrCreate(request.model), (TrainingRequest) request);
             case "test":
-                TestWithPairRequest testWithPairRequest = gson.fromJson(requestString, TestWithPairRequest.class);
-                return getTestWithPair(testWithPairRequest);
+                return getTestWithPair(models.getOrCreate(request.model), (TestWithPairRequest) request);
+            case "testBatch":
+                return getTestBatch(models.getOrCreate(request.model), (TestBatchRequest) request);
+            case "trainAsync":
+                return getTrainAsync(models.getOrCreate(request.model), (TrainingRequest) request);
+            case "sweep":
+                return getSweep(models.getOrCreate(request.model), (SweepRequest) request);
+            case "compile":
+                return getCompile(models.getOrCreate(request.model), (CompileRequest) request);
+            case "trainStatus":
+                return getTrainStatus((TrainingJobRequest) request);
+            case "trainCancel":
+                return getTrainCancel((TrainingJobRequest) request);
+            case "checkpoint":
+                return getCheckpoint(models.getOrCreate(request.model));
+            case "getModelStats":
+                return getModelStats();
+            case "stats":
+                return getStats();
+            case "getWeights":
+                return getWeights(models.getOrCreate(request.model));
+            case "setTrainingSet":
+                return setTrainingSet(models.getOrCreate(request.model), (TrainingSetRequest) request);
+            case "clusterStatus":
+                return cluster.status("clusterStatus");
+            case "clusterJoin":
+                return cluster.changeMembership(((ClusterRequest) request).node, true, sender);
+            case "clusterLeave":
+                ClusterRequest leave = (ClusterRequest) request;
+                return cluster.changeMembership(leave.node != null ? leave.node : cluster.self(), false, sender);
+            case "clusterUpdate":
+                ClusterRequest update = (ClusterRequest) request;
+                return cluster.update(update.nodes, update.version == null ? 0 : update.version, sender);
+            case "clusterHandoff":
+                return cluster.receive((ModelHandoffRequest) request, sender);
+            case "replicaSubscribe":
+                return replicator.subscribe(((ClusterRequest) request).node, sender);
+            case "replicationStatus":
+                return replication != null ? replication.status() : replicator.status();
             default:
-                System.out.println("Error in input.");
-                HashMap<String, Object> response = new HashMap<>();
-                response.put("response", "Error");
-                response.put("status", "Error");
-                return gson.toJson(response);
+                Log.warn("Error in input.");
+                return errorResponse();
         }
     }
 
+//    The response sent for requests that cannot be parsed or have an unknown type
+    HashMap<String, Object> errorResponse(){
+        HashMap<String, Object> response = new HashMap<>();
+        response.put("response", "Error");
+        response.put("status", "Error");
+        return response;
+    }
+
+//    The response to a request refused by admission control, telling the client when to send it again
+    HashMap<String, Object> busyResponse(long retryAfterMillis){
+        HashMap<String, Object> response = new HashMap<>();
+        response.put("response", "Busy");
+        response.put("status", "Busy");
+        response.put("retryAfterMillis", retryAfterMillis);
+        return response;
+    }
+
 //    Get the current range of the truth table
-    private String getCurrentRange(){
+    private HashMap<String, Object> getCurrentRange(Model model){
         HashMap<String, Object> response = new HashMap<>();
-        System.out.println("Sending the current range:");
-        for (int r = 0; r < 4; r++) {
-            System.out.print(userTrainingSets.get(r)[0][0] + "  " + userTrainingSets.get(r)[0][1] + "  " + userTrainingSets.get(r)[1][0] + "  ");
-            System.out.println();
-        }
+        // The table is only ever replaced, so one read of the field gives a consistent table without the lock.
+        ArrayList<Double[][]> trainingSets = model.userTrainingSets;
+        response.put("rows", trainingSets.size());
         response.put("response", "getCurrentRange");
         response.put("status", "OK");
-        response.put("val1", userTrainingSets.get(0)[1][0]);
-        response.put("val2", userTrainingSets.get(1)[1][0]);
-        response.put("val3", userTrainingSets.get(2)[1][0]);
-        response.put("val4", userTrainingSets.get(3)[1][0]);
-        return gson.toJson(response);
+        if (!isTruthTable(trainingSets)) {
+            // A training set uploaded with setTrainingSet has no four value range; getWeights and the row count describe it.
+            return response;
+        }
+        if (Log.isEnabled(Log.Level.INFO)) {
+            StringBuilder table = new StringBuilder();
+            for (int r = 0; r < 4; r++) {
+                table.append('\n').append(trainingSets.get(r)[0][0]).append("  ").append(trainingSets.get(r)[0][1])
+                        .append("  ").append(trainingSets.get(r)[1][0]).append("  ");
+            }
+            Log.info("Sending the current range:", table.toString());
+        }
+        response.put("val1", trainingSets.get(0)[1][0]);
+        response.put("val2", trainingSets.get(1)[1][0]);
+        response.put("val3", trainingSets.get(2)[1][0]);
+        response.put("val4", trainingSets.get(3)[1][0]);
+        return response;
+    }
+
+//    True if the training set is a truth table of four rows with two inputs and one output
+    static boolean isTruthTable(ArrayList<Double[][]> trainingSets){
+        if (trainingSets.size() != 4) {
+            return false;
+        }
+        for (Double[][] row : trainingSets) {
+            if (row[0].length != 2 || row[1].length != 1) {
+                return false;
+            }
+        }
+        return true;
     }
 
 //    Set the current range of the truth table
-    private String setCurrentRange(CreateTruthTableRequest request){
-        System.out.println("Setting the current range:");
-        userTrainingSets = new ArrayList<Double[][]>(Arrays.asList(
+    private HashMap<String, Object> setCurrentRange(Model model, CreateTruthTableRequest request){
+        Log.info("Setting the current range:");
+        ArrayList<Double[][]> trainingSets = new ArrayList<Double[][]>(Arrays.asList(
                 new Double[][]{{0.0, 0.0}, {request.val1}},
                 new Double[][]{{0.0, 1.0}, {request.val2}},
                 new Double[][]{{1.0, 0.0}, {request.val3}},
                 new Double[][]{{1.0, 1.0}, {request.val4}}
         ));
-        this.neuralNetwork = new NeuralNetwork(2, 5, 1, null, null, null, null);
+        NeuralNetwork network = new NeuralNetwork(2, 5, 1, null, null, null, null);
+        model.lock.writeLock().lock();
+        try {
+            model.userTrainingSets = trainingSets;
+            model.neuralNetwork = network;
+            model.publishSnapshot();
+            model.markUpdated();
+        } finally {
+            model.lock.writeLock().unlock();
+        }
+        models.resized(model);
         HashMap<String, Object> response = new HashMap<>();
         response.put("response", "setCurrentRange");
         response.put("status", "OK");
-        return gson.toJson(response);
-    }
-
-//    Train the neural network with the given number of iterations
-    private String getTrain(TrainingRequest request) {
-        int n = request.iterations;
-        for (int i = 0; i < n; i++) {
-            int random_choice = rand.nextInt(4);
-            // Get the two inputs
-            this.userTrainingInputs = Arrays.asList(this.userTrainingSets.get(random_choice)[0]);
-            // Get the one output
-            this.userTrainingOutputs = Arrays.asList(this.userTrainingSets.get(random_choice)[1]);
-            // Show that row to the neural network
-            this.neuralNetwork.train(this.userTrainingInputs, this.userTrainingOutputs);
-        }
-        double error = this.neuralNetwork.calculateTotalError(this.userTrainingSets);
-        System.out.println("After " + n + " training steps, our error " + error);
+        return response;
+    }
+
+//    Replace the training set with the uploaded rows and build a new neural network shaped for them.
+//    A large set arrives in fragments; the rows are only installed once the whole request has been parsed.
+    private HashMap<String, Object> setTrainingSet(Model model, TrainingSetRequest request){
+        double[][] inputs = request.inputs;
+        double[][] outputs = request.outputs;
+        if (inputs == null || outputs == null || inputs.length == 0 || inputs.length != outputs.length
+                || inputs[0] == null || outputs[0] == null || inputs[0].length == 0 || outputs[0].length == 0) {
+            Log.warn("Error in input: a training set needs the same number of input and output rows.");
+            return errorResponse();
+        }
+        int hidden = request.hidden == null ? 5 : request.hidden;
+        if (hidden < 1 || hidden > MAX_HIDDEN) {
+            Log.warn("Error in input: the hidden layer holds 1 to " + MAX_HIDDEN + " neurons.");
+            return errorResponse();
+        }
+        ArrayList<Double[][]> trainingSets = new ArrayList<Double[][]>(inputs.length);
+        for (int r = 0; r < inputs.length; r++) {
+            if (inputs[r] == null || outputs[r] == null
+                    || inputs[r].length != inputs[0].length || outputs[r].length != outputs[0].length) {
+                Log.warn("Error in input: row " + r + " of the training set has a different width.");
+                return errorResponse();
+            }
+            Double[] rowInputs = new Double[inputs[r].length];
+            Double[] rowOutputs = new Double[outputs[r].length];
+            for (int i = 0; i < rowInputs.length; i++) {
+                rowInputs[i] = inputs[r][i];
+            }
+            for (int o = 0; o < rowOutputs.length; o++) {
+                rowOutputs[o] = outputs[r][o];
+            }
+            trainingSets.add(new Double[][]{rowInputs, rowOutputs});
+        }
+        Log.info("Setting a training set of " + inputs.length + " rows");
+        NeuralNetwork network = new NeuralNetwork(inputs[0].length, hidden, outputs[0].length, null, null, null, null);
+        model.lock.writeLock().lock();
+        try {
+            model.userTrainingSets = trainingSets;
+            model.neuralNetwork = network;
+            model.publishSnapshot();
+            model.markUpdated();
+        } finally {
+            model.lock.writeLock().unlock();
+        }
+        models.resized(model);
+        HashMap<String, Object> response = new HashMap<>();
+        response.put("response", "setTrainingSet");
+        response.put("status", "OK");
+        response.put("rows", inputs.length);
+        return response;
+    }
+
+//    Return all weights and biases of the model's latest snapshot. Large networks are sent in fragments.
+    private HashMap<String, Object> getWeights(Model model){
+        DenseNetwork network = model.snapshot().network;
+        HashMap<String, Object> response = new HashMap<>();
+        response.put("response", "getWeights");
+        response.put("status", "OK");
+        response.put("numInputs", network.numInputs);
+        response.put("numHidden", network.numHidden);
+        response.put("numOutputs", network.numOutputs);
+        response.put("learningRate", network.learningRate);
+        response.put("hiddenWeights", network.hiddenWeights);
+        response.put("outputWeights", network.outputWeights);
+        response.put("hiddenBiases", network.hiddenBiases);
+        response.put("outputBiases", network.outputBiases);
+        return response;
+    }
+
+//    Train the neural network with the given number of iterations, or until the error is below targetError
+    private HashMap<String, Object> getTrain(Model model, TrainingRequest request) {
+        String invalid = trainingOptionsError(request, model.userTrainingSets.size());
+        if (invalid != null) {
+            Log.warn("Error in input: " + invalid);
+            return errorResponse();
+        }
+        long started = System.nanoTime();
+        TrainingResult result = trainSteps(model, request.iterations, request, trainingRandom(request));
+        double seconds = (System.nanoTime() - started) / 1e9;
+        Log.info("After " + result.steps() + " training steps, our error ", result.error());
         HashMap<String, Object> response = new HashMap<>();
         response.put("response", "train");
         response.put("status", "OK");
-        response.put("val1", error);
-        return gson.toJson(response);
+        response.put("val1", result.error());
+        response.put("steps", result.steps());
+        if (request.targetError != null) {
+            response.put("converged", result.converged());
+        }
+        response.put("stepsPerSecond", seconds > 0 ? result.steps() / seconds : 0.0);
+        return response;
+    }
+
+//    Check the options of a training request on a table of the given number of rows, and return why they
+//    are invalid, or null. Hogwild workers race on the weights, so they only run plain SGD with replacement.
+//    A mini-batch holds at most every row, and a pool has at most one thread per core.
+    static String trainingOptionsError(TrainingRequest request, int rows) {
+        if (request.iterations == null || request.iterations < 0) {
+            return "a training request needs a number of iterations.";
+        }
+        if (request.batchSize != null && (request.batchSize < 1 || request.batchSize > Math.max(1, rows))) {
+            return "the batch size is 1 to the " + rows + " rows of the training set.";
+        }
+        if (request.parallelism != null && (request.parallelism < 1 || request.parallelism > MAX_POOL_THREADS)) {
+            return "the parallelism is 1 to " + MAX_POOL_THREADS + ".";
+        }
+        if (request.threads != null && (request.threads < 1 || request.threads > MAX_POOL_THREADS)) {
+            return "the Hogwild threads are 1 to " + MAX_POOL_THREADS + ".";
+        }
+        if (request.optimizer != null && !Optimizer.NAMES.contains(request.optimizer)) {
+            return "the optimizers are " + Optimizer.NAMES + ".";
+        }
+        if (request.sampling != null && !request.sampling.equals("random") && !request.sampling.equals("epoch")) {
+            return "sampling is random or epoch.";
+        }
+        if ((request.learningRate != null && !(request.learningRate > 0))
+                || (request.momentum != null && !(request.momentum >= 0 && request.momentum < 1))) {
+            return "the learning rate must be positive and the momentum in [0, 1).";
+        }
+        boolean hogwild = (request.batchSize == null || request.batchSize <= 1) && request.threads != null && request.threads > 1;
+        if (hogwild && (request.optimizer != null || request.learningRate != null || "epoch".equals(request.sampling))) {
+            return "Hogwild training only runs plain SGD with replacement.";
+        }
+        return null;
+    }
+
+//    The optimizer a training request asks for, or null for plain SGD at the network's learning rate.
+//    The model keeps it, so the state carries over to the next request with the same rule and settings.
+//    Called while holding the write lock.
+    static Optimizer optimizer(Model model, TrainingRequest request) {
+        String name = request.optimizer == null ? "sgd" : request.optimizer;
+        if (name.equals("sgd") && request.learningRate == null) {
+            return null;
+        }
+        DenseNetwork network = model.neuralNetwork.network;
+        double learningRate = request.learningRate != null ? request.learningRate : Optimizer.defaultLearningRate(name);
+        double momentum = request.momentum != null ? request.momentum : Optimizer.DEFAULT_MOMENTUM;
+        if (model.optimizer == null || !model.optimizer.matches(name, network, learningRate, momentum)) {
+            model.optimizer = Optimizer.create(name, network, learningRate, momentum);
+        }
+        return model.optimizer;
+    }
+
+//    The random stream a training request samples its rows from: seeded when the request gives a seed
+    SplittableRandom trainingRandom(TrainingRequest request) {
+        return request.seed == null ? new SplittableRandom(rand.nextLong()) : new SplittableRandom(request.seed);
+    }
+
+//    The outcome of trainSteps: the steps run, the total error afterwards and whether it reached the target.
+    record TrainingResult(int steps, double error, boolean converged) {
+    }
+
+//    Run up to n training steps on the model while holding its write lock and return the total error afterwards.
+//    The request selects the mode: mini-batch when batchSize is over 1, Hogwild when threads is over 1,
+//    otherwise sequential SGD. Every mode draws its rows from random, so a seeded request is repeatable.
+//    Sequential and mini-batch training update the weights with the request's optimizer, and with "epoch"
+//    sampling they take the rows in shuffled epochs drawn from random.
+//    With a targetError, training stops early once the total error is below it. The error is checked every
+//    checkInterval steps. Sequential SGD estimates it from the errors of the rows it trained on since the
+//    last check, which come free with each step, and only runs the full evaluation over the table when that
+//    estimate is below the target. The other modes run the full evaluation at every check.
+    TrainingResult trainSteps(Model model, int n, TrainingRequest request, SplittableRandom random) {
+        try (TrainingRun run = new TrainingRun(request, random)) {
+            return trainSteps(model, n, request, run);
+        }
+    }
+
+//    Run up to n training steps as above, as part of a run that may span several calls, such as the slices
+//    of a background job. The run's pool is not shut down here.
+    TrainingResult trainSteps(Model model, int n, TrainingRequest request, TrainingRun run) {
+        boolean miniBatch = TrainingRun.miniBatch(request);
+        boolean hogwild = TrainingRun.hogwild(request);
+        Double targetError = request.targetError;
+        int checkInterval = targetError == null ? Integer.MAX_VALUE
+                : Math.max(1, request.checkInterval == null ? DEFAULT_CHECK_INTERVAL : request.checkInterval);
+        SplittableRandom random = run.random;
+        model.lock.writeLock().lock();
+        long started = System.nanoTime();
+        int done = 0;
+        try {
+            // Unbox the truth table once so that the training loop does not allocate.
+            double[][] trainingInputs = new double[model.userTrainingSets.size()][];
+            double[][] trainingOutputs = new double[model.userTrainingSets.size()][];
+            for (int r = 0; r < model.userTrainingSets.size(); r++) {
+                trainingInputs[r] = NeuralNetwork.toArray(Arrays.asList(model.userTrainingSets.get(r)[0]));
+                trainingOutputs[r] = NeuralNetwork.toArray(Arrays.asList(model.userTrainingSets.get(r)[1]));
+            }
+            DenseNetwork network = model.neuralNetwork.network;
+            Optimizer optimizer = optimizer(model, request);
+            EpochSampler epochs = "epoch".equals(request.sampling) ? run.epochs(trainingInputs.length) : null;
+            int sinceCheck = 0;
+            int sinceSnapshot = 0;
+            double sampledError = 0.0;
+            double error = Double.NaN;
+            boolean converged = false;
+            // Train in runs that end at the next check or snapshot. The weights are published for inference
+            // every SNAPSHOT_STEPS steps and at the end.
+            while (done < n && !converged) {
+                int steps = Math.min(n - done, Math.min(SNAPSHOT_STEPS - sinceSnapshot, checkInterval - sinceCheck));
+                if (miniBatch) {
+                    // Mini-batch mode: weight updates each averaging the gradients of batchSize rows,
+                    // computed in parallel. Without a parallelism the common fork/join pool is used.
+                    new MiniBatchTrainer(network, run.pool, request.batchSize, optimizer)
+                            .train(trainingInputs, trainingOutputs, steps, random, epochs);
+                } else if (hogwild) {
+                    // Hogwild mode: threads workers update the shared weights without locks.
+                    new HogwildTrainer(network, run.pool, request.threads)
+                            .train(trainingInputs, trainingOutputs, steps, random);
+                } else {
+                    for (int i = 0; i < steps; i++) {
+                        int random_choice = epochs != null ? epochs.nextRow() : random.nextInt(trainingInputs.length);
+                        // Show that row to the neural network
+                        sampledError += optimizer != null
+                                ? optimizer.train(trainingInputs[random_choice], trainingOutputs[random_choice])
+                                : model.neuralNetwork.train(trainingInputs[random_choice], trainingOutputs[random_choice]);
+                    }
+                }
+                done += steps;
+                sinceCheck += steps;
+                sinceSnapshot += steps;
+                if (sinceCheck == checkInterval) {
+                    // The mean error of the sampled rows times the rows in the table estimates the total error.
+                    boolean sampled = !miniBatch && !hogwild;
+                    double estimate = sampled ? sampledError / sinceCheck * trainingInputs.length : 0.0;
+                    if (estimate < targetError) {
+                        error = model.neuralNetwork.calculateTotalError(trainingInputs, trainingOutputs);
+                        converged = error < targetError;
+                    }
+                    sinceCheck = 0;
+                    sampledError = 0.0;
+                }
+                if (sinceSnapshot == SNAPSHOT_STEPS || done == n || converged) {
+                    model.publishSnapshot();
+                    sinceSnapshot = 0;
+                }
+            }
+            model.markUpdated();
+            if (!converged) {
+                error = model.neuralNetwork.calculateTotalError(trainingInputs, trainingOutputs);
+                converged = targetError != null && error < targetError;
+            }
+            return new TrainingResult(done, error, converged);
+        } finally {
+            metrics.recordTraining(done, System.nanoTime() - started);
+            model.lock.writeLock().unlock();
+        }
+    }
+
+//    Train candidate networks for every combination of seed, hidden width and learning rate in parallel,
+//    and install the best one as the model's network. The model keeps serving and training while the
+//    candidates train; the winner is not installed if the training set was replaced in the meantime.
+    private HashMap<String, Object> getSweep(Model model, SweepRequest request){
+        int seeds = request.seeds == null ? 4 : request.seeds;
+        int[] hiddenSizes = request.hidden == null ? new int[]{3, 5, 8} : request.hidden;
+        double[] learningRates = request.learningRates == null ? new double[]{0.5, 1.0, 2.0} : request.learningRates;
+        int iterations = request.iterations == null ? 20000 : request.iterations;
+        int roundSteps = request.roundSteps == null ? 1000 : request.roundSteps;
+        double keepFraction = request.keepFraction == null ? 0.5 : request.keepFraction;
+        if (seeds < 1 || hiddenSizes.length == 0 || learningRates.length == 0
+                || (long) seeds * hiddenSizes.length * learningRates.length > MAX_SWEEP_CANDIDATES) {
+            Log.warn("Error in input: a sweep trains 1 to " + MAX_SWEEP_CANDIDATES + " candidates.");
+            return errorResponse();
+        }
+        for (int hidden : hiddenSizes) {
+            if (hidden < 1 || hidden > MAX_HIDDEN) {
+                Log.warn("Error in input: the hidden layer holds 1 to " + MAX_HIDDEN + " neurons.");
+                return errorResponse();
+            }
+        }
+        for (double learningRate : learningRates) {
+            if (!(learningRate > 0)) {
+                Log.warn("Error in input: learning rates must be positive.");
+                return errorResponse();
+            }
+        }
+        if (iterations < 1 || roundSteps < 1 || !(keepFraction > 0 && keepFraction <= 1)) {
+            Log.warn("Error in input: a sweep needs positive iterations and roundSteps, and a keepFraction in (0, 1].");
+            return errorResponse();
+        }
+        if (request.parallelism != null && (request.parallelism < 1 || request.parallelism > MAX_POOL_THREADS)) {
+            Log.warn("Error in input: the parallelism is 1 to " + MAX_POOL_THREADS + ".");
+            return errorResponse();
+        }
+        ArrayList<Double[][]> trainingSets = model.userTrainingSets;
+        double[][] trainingInputs = new double[trainingSets.size()][];
+        double[][] trainingOutputs = new double[trainingSets.size()][];
+        for (int r = 0; r < trainingSets.size(); r++) {
+            trainingInputs[r] = NeuralNetwork.toArray(Arrays.asList(trainingSets.get(r)[0]));
+            trainingOutputs[r] = NeuralNetwork.toArray(Arrays.asList(trainingSets.get(r)[1]));
+        }
+        long firstSeed = request.seed == null ? rand.nextLong() : request.seed;
+        long[] seedValues = new long[seeds];
+        for (int s = 0; s < seeds; s++) {
+            seedValues[s] = firstSeed + s;
+        }
+        double targetError = request.targetError == null ? 0.01 : request.targetError;
+        int checkInterval = Math.max(1, request.checkInterval == null ? DEFAULT_CHECK_INTERVAL : request.checkInterval);
+        HyperparameterSweep sweep = new HyperparameterSweep(trainingInputs, trainingOutputs, seedValues, hiddenSizes,
+                learningRates, iterations, roundSteps, checkInterval, targetError, keepFraction);
+        ForkJoinPool pool = request.parallelism != null ? new ForkJoinPool(request.parallelism) : ForkJoinPool.commonPool();
+        long started = System.nanoTime();
+        HyperparameterSweep.Candidate best;
+        try {
+            best = sweep.run(pool);
+        } finally {
+            metrics.recordTraining(sweep.totalSteps(), System.nanoTime() - started);
+            if (pool != ForkJoinPool.commonPool()) pool.shutdown();
+        }
+        double seconds = (System.nanoTime() - started) / 1e9;
+        boolean installed = false;
+        model.lock.writeLock().lock();
+        try {
+            if (model.userTrainingSets == trainingSets) {
+                model.neuralNetwork = new NeuralNetwork(best.network);
+                model.publishSnapshot();
+                model.markUpdated();
+                installed = true;
+            }
+        } finally {
+            model.lock.writeLock().unlock();
+        }
+        Log.info("Sweep of " + sweep.candidates().size() + " candidates ended with an error of ", best.error);
+        List<HashMap<String, Object>> results = new ArrayList<>();
+        for (HyperparameterSweep.Candidate candidate : sweep.candidates()) {
+            results.add(candidateResult(candidate));
+        }
+        HashMap<String, Object> response = new HashMap<>();
+        response.put("response", "sweep");
+        response.put("status", "OK");
+        response.put("best", candidateResult(best));
+        response.put("converged", best.converged);
+        response.put("installed", installed);
+        response.put("rounds", sweep.rounds());
+        response.put("totalSteps", sweep.totalSteps());
+        response.put("seconds", seconds);
+        response.put("candidates", results);
+        return response;
+    }
+
+//    The settings and outcome of one sweep candidate
+    private static HashMap<String, Object> candidateResult(HyperparameterSweep.Candidate candidate){
+        HashMap<String, Object> result = new HashMap<>();
+        result.put("seed", candidate.seed);
+        result.put("hidden", candidate.hidden);
+        result.put("learningRate", candidate.learningRate);
+        result.put("error", candidate.error);
+        result.put("steps", candidate.steps);
+        result.put("rounds", candidate.rounds);
+        result.put("converged", candidate.converged);
+        return result;
+    }
+
+//    Freeze the published weights into an inference-only form that serves test and testBatch until the
+//    weights change. The default mode is a table when every training input is 0 or 1, otherwise float32.
+//    The response reports how far the compiled outputs are from the double network's.
+    private HashMap<String, Object> getCompile(Model model, CompileRequest request){
+        Model.Published published = model.published();
+        ArrayList<Double[][]> trainingSets = model.userTrainingSets;
+        double[][] trainingInputs = new double[trainingSets.size()][];
+        for (int r = 0; r < trainingSets.size(); r++) {
+            trainingInputs[r] = NeuralNetwork.toArray(Arrays.asList(trainingSets.get(r)[0]));
+        }
+        if (trainingInputs.length == 0 || trainingInputs[0].length != published.network().network.numInputs) {
+            Log.warn("Error in input: the training set does not match the published network.");
+            return errorResponse();
+        }
+        CompiledNetwork.Mode mode;
+        String requested = request.mode == null ? "auto" : request.mode;
+        switch (requested) {
+            case "auto":
+                mode = CompiledNetwork.isDiscrete(trainingInputs) ? CompiledNetwork.Mode.TABLE : CompiledNetwork.Mode.FLOAT32;
+                break;
+            case "table":
+                mode = CompiledNetwork.Mode.TABLE;
+                break;
+            case "float32":
+                mode = CompiledNetwork.Mode.FLOAT32;
+                break;
+            case "int8":
+                mode = CompiledNetwork.Mode.INT8;
+                break;
+            default:
+                Log.warn("Error in input: the compile modes are auto, table, float32 and int8.");
+                return errorResponse();
+        }
+        if (mode == CompiledNetwork.Mode.TABLE && trainingInputs[0].length > CompiledNetwork.MAX_TABLE_INPUTS) {
+            Log.warn("Error in input: only networks of up to " + CompiledNetwork.MAX_TABLE_INPUTS + " inputs can be tabulated.");
+            return errorResponse();
+        }
+        CompiledNetwork compiled = CompiledNetwork.compile(published, mode);
+        HashMap<String, Object> response = compiled.accuracy(published.network(), trainingInputs, 256, published.version());
+        model.setCompiled(compiled);
+        DenseNetwork network = published.network().network;
+        Log.info("Compiled model " + model.id + " as ", mode);
+        response.put("response", "compile");
+        response.put("status", "OK");
+        response.put("mode", mode.name().toLowerCase());
+        response.put("version", published.version());
+        response.put("bytes", compiled.bytes());
+        response.put("doubleBytes", 8L * (network.hiddenWeights.length + network.outputWeights.length
+                + network.hiddenBiases.length + network.outputBiases.length));
+        return response;
+    }
+
+//    Start training in the background and return the id of the job at once
+    private HashMap<String, Object> getTrainAsync(Model model, TrainingRequest request) {
+        String invalid = trainingOptionsError(request, model.userTrainingSets.size());
+        if (invalid != null) {
+            Log.warn("Error in input: " + invalid);
+            return errorResponse();
+        }
+        TrainingJob job = trainingJobs.start(this, model, request);
+        if (job == null) {
+            Log.warn("Error in input: too many training jobs are queued or running.");
+            return errorResponse();
+        }
+        Log.info("Started training job " + job.id + " for " + request.iterations + " steps");
+        HashMap<String, Object> response = new HashMap<>();
+        response.put("response", "trainAsync");
+        response.put("status", "OK");
+        response.put("jobId", job.id);
+        return response;
+    }
+
+//    Report the progress of a background training job
+    private HashMap<String, Object> getTrainStatus(TrainingJobRequest request) {
+        TrainingJob job = trainingJobs.get(request.jobId);
+        if (job == null) {
+            Log.warn("Error in input: no training job " + request.jobId);
+            return errorResponse();
+        }
+        HashMap<String, Object> response = job.progress();
+        response.put("response", "trainStatus");
+        response.put("status", "OK");
+        return response;
+    }
+
+//    Ask a background training job to stop after its current slice of steps
+    private HashMap<String, Object> getTrainCancel(TrainingJobRequest request) {
+        TrainingJob job = trainingJobs.get(request.jobId);
+        if (job == null) {
+            Log.warn("Error in input: no training job " + request.jobId);
+            return errorResponse();
+        }
+        job.cancel();
+        HashMap<String, Object> response = job.progress();
+        response.put("response", "trainCancel");
+        response.put("status", "OK");
+        return response;
+    }
+
+//    Write a checkpoint of the model now
+    private HashMap<String, Object> getCheckpoint(Model model){
+        if (checkpoints == null) {
+            Log.warn("Error in input: checkpoints are not configured.");
+            return errorResponse();
+        }
+        HashMap<String, Object> response = new HashMap<>();
+        try {
+            response.put("bytes", checkpoints.save(model));
+        } catch (IOException e) {
+            Log.error("Checkpoint of model " + model.id + " failed: " + e.getMessage());
+            return errorResponse();
+        }
+        response.put("response", "checkpoint");
+        response.put("status", "OK");
+        return response;
+    }
+
+//    Report the request counters, latency percentiles, training rate and traffic of the server
+    private HashMap<String, Object> getStats(){
+        HashMap<String, Object> response = metrics.stats();
+        response.put("fragments", fragments.stats());
+        response.put("admission", admission.stats());
+        response.put("response", "stats");
+        response.put("status", "OK");
+        return response;
+    }
+
+//    Report the number of models held and the registry's hit, miss and eviction counters
+    private HashMap<String, Object> getModelStats(){
+        HashMap<String, Object> response = new HashMap<>(models.stats());
+        response.put("response", "getModelStats");
+        response.put("status", "OK");
+        return response;
     }
 
 //    Test the neural network with a pair of inputs
-    private String getTestWithPair(TestWithPairRequest request){
+    private HashMap<String, Object> getTestWithPair(Model model, TestWithPairRequest request){
         double input0 = request.val1;
         double input1 = request.val2;
-        List<Double> testUserInputs = new ArrayList<>(Arrays.asList(input0, input1));
-        List<Double> userOutput = this.neuralNetwork.feedForward(testUserInputs);
-        System.out.println("The range value is approximately " + userOutput.getFirst());
+        if (model.snapshot().network.numInputs != 2) {
+            Log.warn("Error in input: the network takes " + model.snapshot().network.numInputs + " inputs; use testBatch.");
+            return errorResponse();
+        }
+        // Inference runs on the published snapshot, or its compiled form, so it never waits for training.
+        CompiledNetwork compiled = model.compiled();
+        double[] inputs = new double[]{input0, input1};
+        double userOutput = compiled != null ? compiled.evaluate(inputs)[0] : model.snapshot().evaluate(inputs)[0];
+        Log.info("The range value is approximately ", userOutput);
         HashMap<String, Object> response = new HashMap<>();
         response.put("response", "test");
         response.put("status", "OK");
-        response.put("val1", userOutput.getFirst());
-        return gson.toJson(response);
+        response.put("val1", userOutput);
+        return response;
     }
 
-    class Request{
+//    Test the neural network with a batch of input rows and return all outputs in one response
+    private HashMap<String, Object> getTestBatch(Model model, TestBatchRequest request){
+        if (request.inputs == null || request.inputs.length == 0 || request.inputs.length > MAX_TEST_BATCH) {
+            Log.warn("Error in input: a batch holds 1 to " + MAX_TEST_BATCH + " rows.");
+            return errorResponse();
+        }
+        NeuralNetwork snapshot = model.snapshot();
+        for (double[] row : request.inputs) {
+            if (row == null || row.length != snapshot.network.numInputs) {
+                Log.warn("Error in input: each row needs " + snapshot.network.numInputs + " inputs.");
+                return errorResponse();
+            }
+        }
+        CompiledNetwork compiled = model.compiled();
+        double[] outputs = compiled != null && compiled.numInputs == snapshot.network.numInputs
+                ? compiled.evaluateBatch(request.inputs) : snapshot.evaluateBatch(request.inputs);
+        Log.info("Tested a batch of " + request.inputs.length + " rows");
+        HashMap<String, Object> response = new HashMap<>();
+        response.put("response", "testBatch");
+        response.put("status", "OK");
+        response.put("outputs", outputs);
+        return response;
+    }
+
+    static class Request{
         String request;
+        // The session id of the model this request applies to. Null selects the default model.
+        String model;
+        // Optional: chosen by the client to match the response to the request, and echoed in the response.
+        // Retransmissions of a request keep its id, so the server can recognise them.
+        Integer requestId;
+        // Set by a cluster node that forwards the request to the owner of its model.
+        Boolean forwarded;
         public Request(String request){
             this.request = request;
         }
     }
 
-    class CreateTruthTableRequest extends Request{
+    static class CreateTruthTableRequest extends Request{
         Double val1;
         Double val2;
         Double val3;
@@ -332,15 +1272,60 @@ public class NeuralNetworkServer {
         }
     }
 
-    class TrainingRequest extends Request{
+    static class TrainingRequest extends Request{
         Integer iterations;
+        // Optional: rows per weight update and the number of threads computing them.
+        Integer batchSize;
+        Integer parallelism;
+        // Optional: the number of Hogwild workers, and a seed that makes the rows they sample repeatable.
+        Integer threads;
+        Long seed;
+        // Optional: stop once the total error is below targetError, checking every checkInterval steps.
+        // iterations is then the most steps to run.
+        Double targetError;
+        Integer checkInterval;
+        // Optional: the update rule (sgd, momentum, nesterov, rmsprop or adam), its learning rate and momentum,
+        // and "epoch" to visit the rows in shuffled epochs instead of sampling them with replacement.
+        String optimizer;
+        Double learningRate;
+        Double momentum;
+        String sampling;
         public TrainingRequest(String request, Integer iterations){
             super(request);
             this.iterations = iterations;
         }
     }
 
-    class TestWithPairRequest extends Request{
+    static class SweepRequest extends Request{
+        // Optional: the number of seeds, counting up from seed, and the hidden widths and learning rates to
+        // combine with each. Every combination is one candidate network.
+        Integer seeds;
+        Long seed;
+        int[] hidden;
+        double[] learningRates;
+        // Optional: the most steps per candidate, the steps per round, and the fraction of candidates kept after each round.
+        Integer iterations;
+        Integer roundSteps;
+        Double keepFraction;
+        // Optional: the total error that ends the sweep, checked every checkInterval steps, and the pool size.
+        Double targetError;
+        Integer checkInterval;
+        Integer parallelism;
+        public SweepRequest(String request){
+            super(request);
+        }
+    }
+
+    static class CompileRequest extends Request{
+        // Optional: auto (the default), table, float32 or int8.
+        String mode;
+        public CompileRequest(String request, String mode){
+            super(request);
+            this.mode = mode;
+        }
+    }
+
+    static class TestWithPairRequest extends Request{
         double val1;
         double val2;
         public TestWithPairRequest(String request, double val1, double val2){
@@ -349,158 +1334,81 @@ public class NeuralNetworkServer {
             this.val2 = val2;
         }
     }
-    public static void main(String args[]) {
-        // Create a socket to listen on given port
-        Scanner scanner = new Scanner(System.in);
-        System.out.println("Enter the port number to listen on:");
-        int port = Integer.parseInt(scanner.nextLine());
-        NeuralNetworkServer neuralNetworkServer = new NeuralNetworkServer();
-        neuralNetworkServer.listen(port);
-    }
-}
-
-class NeuralNetwork {
-
-    // The learning rate is chosen experimentally. Typically, it is set between 0 and 1.
-    private double LEARNING_RATE = 0.5;
-    // This truth table example will have two inputs.
-    private int numInputs;
-
-    // This neural network will be built from two layers of neurons.
-    private NeuronLayer hiddenLayer;
-    private NeuronLayer outputLayer;
-
-    // The neural network is constructed by specifying the number of inputs, the number of neurons in the hidden layer,
-    // the number of neurons in the output layer, the hidden layer weights, the hidden layer bias,
-    // the output layer weights and output layer bias.
-    public NeuralNetwork(int numInputs, int numHidden, int numOutputs, List<Double> hiddenLayerWeights, Double hiddenLayerBias,
-                         List<Double> outputLayerWeights, Double outputLayerBias) {
-        // How many inputs to this neural network
-        this.numInputs = numInputs;
-
-        // Create two layers, one hidden layer and one output layer.
-        hiddenLayer = new NeuronLayer(numHidden, hiddenLayerBias);
-        outputLayer = new NeuronLayer(numOutputs, outputLayerBias);
-
-        initWeightsFromInputsToHiddenLayerNeurons(hiddenLayerWeights);
-
-        initWeightsFromHiddenLayerNeuronsToOutputLayerNeurons(outputLayerWeights);
-    }
-
-    // The hidden layer neurons have weights that are assigned here. If the actual weights are not
-    // provided, random weights are generated.
-    public void initWeightsFromInputsToHiddenLayerNeurons(List<Double> hiddenLayerWeights) {
-
-        int weightNum = 0;
-        for (int h = 0; h < hiddenLayer.neurons.size(); h++) {
-            for (int i = 0; i < numInputs; i++) {
-                if (hiddenLayerWeights == null) {
-                    hiddenLayer.neurons.get(h).weights.add((new Random()).nextDouble());
-                } else {
-                    hiddenLayer.neurons.get(h).weights.add(hiddenLayerWeights.get(weightNum));
-                }
-                weightNum = weightNum + 1;
-            }
+    static class TestBatchRequest extends Request{
+        double[][] inputs;
+        public TestBatchRequest(String request, double[][] inputs){
+            super(request);
+            this.inputs = inputs;
         }
     }
-
-    // The output layer neurons have weights that are assigned here. If the actual weights are not
-    // provided, random weights are generated.
-    public void initWeightsFromHiddenLayerNeuronsToOutputLayerNeurons(List<Double> outputLayerWeights) {
-        int weightNum = 0;
-        for (int o = 0; o < outputLayer.neurons.size(); o++) {
-            for (int h = 0; h < hiddenLayer.neurons.size(); h++) {
-                if (outputLayerWeights == null) {
-                    outputLayer.neurons.get(o).weights.add((new Random()).nextDouble());
-                } else {
-                    outputLayer.neurons.get(o).weights.add(outputLayerWeights.get(weightNum));
-                }
-                weightNum = weightNum + 1;
-            }
+    static class TrainingSetRequest extends Request{
+        // One row of inputs and one row of outputs per training example, and optionally the hidden layer size.
+        double[][] inputs;
+        double[][] outputs;
+        Integer hidden;
+        public TrainingSetRequest(String request, double[][] inputs, double[][] outputs){
+            super(request);
+            this.inputs = inputs;
+            this.outputs = outputs;
         }
     }
-
-    // Display a NeuralNetwork object by calling the toString on each layer.
-    public String toString() {
-        String s = "";
-        s = s + "-----\n";
-        s = s + "* Inputs: " + numInputs + "\n";
-        s = s + "-----\n";
-
-        s = s + "Hidden Layer\n";
-        s = s + hiddenLayer.toString();
-        s = s + "----";
-        s = s + "* Output layer\n";
-        s = s + outputLayer.toString();
-        s = s + "-----";
-        return s;
-    }
-
-    // Feed the inputs provided into the network and get outputs.
-    // The inputs are provided to the hidden layer. The hidden layer's outputs
-    // are provided as inputs the output layer. The outputs of the output layer
-    // are returned to the caller as a list of outputs. That number of outputs may be one.
-    // The feedForward method is called on each layer.
-    public List<Double> feedForward(List<Double> inputs) {
-
-        List<Double> hiddenLayerOutputs = hiddenLayer.feedForward(inputs);
-        return outputLayer.feedForward(hiddenLayerOutputs);
-    }
-
-    // Training means to feed the data forward - forward propagation. Compare the result with the target(s), and
-    // use backpropagation to update the weights. See the blog post to review the math.
-    public void train(List<Double> trainingInputs, List<Double> trainingOutputs) {
-
-        // Update state of neural network and ignore the return value
-        feedForward(trainingInputs);
-        // Perform backpropagation
-        List<Double> pdErrorsWRTOutputNeuronTotalNetInput =
-                new ArrayList<Double>(Collections.nCopies(outputLayer.neurons.size(), 0.0));
-        for (int o = 0; o < outputLayer.neurons.size(); o++) {
-            pdErrorsWRTOutputNeuronTotalNetInput.set(o, outputLayer.neurons.get(o).calculatePDErrorWRTTotalNetInput(trainingOutputs.get(o)));
-        }
-        List<Double> pdErrorsWRTHiddenNeuronTotalNetInput =
-                new ArrayList<Double>(Collections.nCopies(hiddenLayer.neurons.size(), 0.0));
-        for (int h = 0; h < hiddenLayer.neurons.size(); h++) {
-            double dErrorWRTHiddenNeuronOutput = 0;
-            for (int o = 0; o < outputLayer.neurons.size(); o++) {
-                dErrorWRTHiddenNeuronOutput +=
-                        pdErrorsWRTOutputNeuronTotalNetInput.get(o) * outputLayer.neurons.get(o).weights.get(h);
-                pdErrorsWRTHiddenNeuronTotalNetInput.set(h, dErrorWRTHiddenNeuronOutput *
-                        hiddenLayer.neurons.get(h).calculatePDTotalNetInputWRTInput());
-            }
+    static class ClusterRequest extends Request{
+        // The "host:port" address of the node joining or leaving, or the whole membership and its version.
+        // replicaSubscribe sends the address of the replica in node.
+        String node;
+        String[] nodes;
+        Long version;
+        public ClusterRequest(String request, String node){
+            super(request);
+            this.node = node;
         }
-        for (int o = 0; o < outputLayer.neurons.size(); o++) {
-            for (int wHo = 0; wHo < outputLayer.neurons.get(o).weights.size(); wHo++) {
-                double pdErrorWRTWeight =
-                        pdErrorsWRTOutputNeuronTotalNetInput.get(o) *
-                                outputLayer.neurons.get(o).calculatePDTotalNetInputWRTWeight(wHo);
-                outputLayer.neurons.get(o).weights.set(wHo, outputLayer.neurons.get(o).weights.get(wHo) - LEARNING_RATE * pdErrorWRTWeight);
-            }
+    }
+    static class ModelHandoffRequest extends Request{
+        // The weights and training set of a model moving to a new owner, as getWeights and setTrainingSet send them.
+        int numInputs;
+        int numHidden;
+        int numOutputs;
+        double learningRate;
+        double[] hiddenWeights;
+        double[] outputWeights;
+        double[] hiddenBiases;
+        double[] outputBiases;
+        double[][] inputs;
+        double[][] outputs;
+        public ModelHandoffRequest(String request){
+            super(request);
         }
-        for (int h = 0; h < hiddenLayer.neurons.size(); h++) {
-            for (int wIh = 0; wIh < hiddenLayer.neurons.get(h).weights.size(); wIh++) {
-                double pdErrorWRTWeight =
-                        pdErrorsWRTHiddenNeuronTotalNetInput.get(h) *
-                                hiddenLayer.neurons.get(h).calculatePDTotalNetInputWRTWeight(wIh);
-                hiddenLayer.neurons.get(h).weights.set(wIh, hiddenLayer.neurons.get(h).weights.get(wIh) - LEARNING_RATE * pdErrorWRTWeight);
-            }
+    }
+    static class TrainingJobRequest extends Request{
+        String jobId;
+        public TrainingJobRequest(String request, String jobId){
+            super(request);
+            this.jobId = jobId;
         }
     }
-
-    // Perform a feed forward for each training row and total the error.
-    public double calculateTotalError(ArrayList<Double[][]> trainingSets) {
-
-        double totalError = 0.0;
-
-        for (int t = 0; t < trainingSets.size(); t++) {
-            List<Double> trainingInputs = Arrays.asList(trainingSets.get(t)[0]);
-            List<Double> trainingOutputs = Arrays.asList(trainingSets.get(t)[1]);
-            feedForward(trainingInputs);
-            for (int o = 0; o < trainingOutputs.size(); o++) {
-                totalError += outputLayer.neurons.get(o).calculate_error(trainingOutputs.get(o));
+    public static void main(String args[]) {
+        // Create a socket to listen on given port
+        Scanner scanner = new Scanner(System.in);
+        System.out.println("Enter the port number to listen on:");
+        int port = Integer.parseInt(scanner.nextLine());
+        NeuralNetworkServer neuralNetworkServer = new NeuralNetworkServer();
+        neuralNetworkServer.cluster = Cluster.fromSystemProperties(neuralNetworkServer, port);
+        neuralNetworkServer.replicator = Replicator.fromSystemProperties(neuralNetworkServer);
+        neuralNetworkServer.replication = Replication.fromSystemProperties(neuralNetworkServer, port);
+        if (neuralNetworkServer.checkpoints != null) {
+            try {
+                neuralNetworkServer.checkpoints.start(neuralNetworkServer.models);
+            } catch (IOException e) {
+                Log.error("Checkpoints: " + e.getMessage());
             }
         }
-        return totalError;
+        // Requests are handled concurrently unless "sequential" or "nio" is given as the first argument.
+        if (args.length > 0 && args[0].equals("sequential")) {
+            neuralNetworkServer.listen(port);
+        } else if (args.length > 0 && args[0].equals("nio")) {
+            new NioTransport(neuralNetworkServer).listen(port);
+        } else {
+            neuralNetworkServer.listenConcurrently(port);
+        }
     }
 }
@@ -0,0 +1,271 @@
+package ds;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A UDP transport for NeuralNetworkServer built on a non-blocking DatagramChannel and a Selector.
+// Datagrams are received into pooled direct buffers and parsed straight from the buffer, as JSON
+// or in the BinaryProtocol format.
+// On each wakeup the selector thread drains up to BATCH datagrams and sends up to BATCH queued
+// responses, so a burst of packets costs one select call instead of one per packet.
+// Requests pass through the server's admission control on the selector thread and are handled by
+// its workers, as in the concurrent mode of the server.
+// Requests and responses larger than one datagram travel in Fragments.
+class NioTransport {
+
+    // The largest datagram read, the same as the buffer used by NeuralNetworkServer.listen.
+    static final int BUFFER_SIZE = Fragments.DATAGRAM_SIZE;
+    // The most datagrams received or sent per selector wakeup.
+    static final int BATCH = 64;
+
+    private final NeuralNetworkServer server;
+    private final BufferPool pool = new BufferPool(256, BUFFER_SIZE);
+    private final Queue<Reply> replies = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+
+    // A response waiting to be sent by the selector thread.
+    private record Reply(ByteBuffer buffer, SocketAddress address) {
+    }
+
+    NioTransport(NeuralNetworkServer server) {
+        this.server = server;
+    }
+
+    void listen(int port) {
+        Log.info("Server started in NIO mode");
+        try (DatagramChannel channel = DatagramChannel.open();
+             Selector selector = Selector.open();
+             ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            this.selector = selector;
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, Fragments.RECEIVE_BUFFER);
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            while (true) {
+                selector.select();
+                selector.selectedKeys().clear();
+                if (key.isValid() && key.isReadable()) {
+                    receive(channel, executor);
+                }
+                boolean pending = send(channel);
+                // Only ask to be woken for writes while the socket buffer is full.
+                key.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            Log.error("IO: " + e.getMessage());
+        }
+    }
+
+    // Read up to BATCH datagrams. Each request is reassembled from its fragments and passed through
+    // admission control here, so a refused request costs no parsing and no thread. Admitted requests are
+    // queued for the admission control workers; replication messages from the primary go straight to
+    // the executor, and other replication messages are dropped.
+    private void receive(DatagramChannel channel, ExecutorService executor) throws IOException {
+        for (int i = 0; i < BATCH; i++) {
+            ByteBuffer buffer = pool.acquire();
+            SocketAddress address = channel.receive(buffer);
+            if (address == null) {
+                pool.release(buffer);
+                return;
+            }
+            buffer.flip();
+            server.metrics.recordReceived(buffer.remaining());
+            ByteBuffer request = reassemble(buffer, address);
+            if (request == null) {
+                continue;
+            }
+            if (Replication.isReplication(request)) {
+                if (server.acceptsReplication(address)) {
+                    executor.execute(() -> handle(request, address));
+                } else {
+                    pool.release(request);
+                }
+                continue;
+            }
+            long retryAfter = server.admission.admit(address);
+            if (retryAfter > 0) {
+                busy(request, address, retryAfter);
+                continue;
+            }
+            if (!server.submit(request, address, () -> handle(request, address),
+                    () -> busy(request, address, server.admission.retryAfterMillis), () -> pool.release(request))) {
+                busy(request, address, server.admission.retryAfterMillis);
+            }
+        }
+    }
+
+    // Add a fragment to its message and return the message once all its fragments have arrived, or
+    // null until then. Any other datagram is returned as it is.
+    private ByteBuffer reassemble(ByteBuffer request, SocketAddress address) {
+        if (!Fragments.isFragment(request)) {
+            return request;
+        }
+        byte[] message = server.fragments.accept(address, request);
+        if (message == null) {
+            pool.release(request);
+            return null;
+        }
+        if (message.length > request.capacity()) {
+            // Only JSON requests grow this large, and their response is written to a new buffer.
+            pool.release(request);
+            return ByteBuffer.wrap(message);
+        }
+        request.clear();
+        request.put(message).flip();
+        return request;
+    }
+
+    // Queue the busy reply to a request admission control refused, and release the request's buffer.
+    private void busy(ByteBuffer request, SocketAddress address, long retryAfterMillis) {
+        byte[] reply = server.busyReply(request, retryAfterMillis);
+        pool.release(request);
+        replies.add(new Reply(ByteBuffer.wrap(reply), address));
+        selector.wakeup();
+    }
+
+    // Parse and run one request, then queue its response for the selector thread.
+    private void handle(ByteBuffer request, SocketAddress address) {
+        if (BinaryProtocol.isBinary(request) || Replication.isReplication(request)) {
+            if (BinaryProtocol.isBinary(request)) {
+                server.parseBinaryRequest(request, address);
+            } else {
+                server.parseReplication(request, address);
+            }
+            replies.add(new Reply(request, address));
+            selector.wakeup();
+            return;
+        }
+        String responseString;
+        try {
+            responseString = server.parseRequest(new ByteBufferReader(request), address);
+        } catch (RuntimeException e) {
+            Log.warn("Error in input: " + e.getMessage());
+            server.metrics.recordError();
+            responseString = server.gson.toJson(server.errorResponse());
+        }
+        Log.payload("Sending response: ", responseString);
+        // Reuse the request buffer for the response when it fits in one datagram.
+        ByteBuffer response = request.capacity() == BUFFER_SIZE ? request : pool.acquire();
+        response.clear();
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        if (encoder.encode(CharBuffer.wrap(responseString), response, true).isOverflow()) {
+            // Too large for one datagram: send it in fragments instead.
+            // Each burst is queued and sent before the next, pacing them like the other transports.
+            pool.release(response);
+            List<byte[]> parts = Fragments.datagrams(responseString.getBytes(StandardCharsets.UTF_8),
+                    server.fragments.nextMessageId());
+            for (int p = 0; p < parts.size(); p++) {
+                replies.add(new Reply(ByteBuffer.wrap(parts.get(p)), address));
+                if ((p + 1) % Fragments.BURST == 0) {
+                    selector.wakeup();
+                }
+                Fragments.pace(p);
+            }
+        } else {
+            response.flip();
+            replies.add(new Reply(response, address));
+        }
+        selector.wakeup();
+    }
+
+    // Send up to BATCH queued responses. Return true if some are still waiting for socket space.
+    private boolean send(DatagramChannel channel) throws IOException {
+        for (int i = 0; i < BATCH; i++) {
+            Reply reply = replies.peek();
+            if (reply == null) {
+                return false;
+            }
+            int bytes = reply.buffer.remaining();
+            if (channel.send(reply.buffer, reply.address) == 0) {
+                return true;
+            }
+            server.metrics.recordSent(bytes);
+            replies.poll();
+            pool.release(reply.buffer);
+        }
+        return !replies.isEmpty();
+    }
+
+    // A bounded pool of direct buffers. When it is empty a new buffer is allocated, and buffers
+    // released to a full pool are left to the garbage collector.
+    static final class BufferPool {
+        private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pooled = new AtomicInteger();
+        private final int capacity;
+        private final int bufferSize;
+
+        BufferPool(int capacity, int bufferSize) {
+            this.capacity = capacity;
+            this.bufferSize = bufferSize;
+        }
+
+        ByteBuffer acquire() {
+            ByteBuffer buffer = buffers.poll();
+            if (buffer == null) {
+                return ByteBuffer.allocateDirect(bufferSize);
+            }
+            pooled.decrementAndGet();
+            return buffer;
+        }
+
+        // Return a buffer to the pool. Buffers the pool did not hand out, such as fragments, are left to the collector.
+        void release(ByteBuffer buffer) {
+            if (!buffer.isDirect() || buffer.capacity() != bufferSize) {
+                return;
+            }
+            buffer.clear();
+            if (pooled.incrementAndGet() <= capacity) {
+                buffers.add(buffer);
+            } else {
+                pooled.decrementAndGet();
+            }
+        }
+    }
+
+    // A Reader that decodes UTF-8 directly from a ByteBuffer, so Gson can parse a datagram
+    // without first copying it into a byte[] and a String.
+    static final class ByteBufferReader extends Reader {
+        private final ByteBuffer buffer;
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+
+        ByteBufferReader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read(char[] chars, int offset, int length) throws IOException {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            CharBuffer out = CharBuffer.wrap(chars, offset, length);
+            CoderResult result = decoder.decode(buffer, out, true);
+            if (result.isError()) {
+                result.throwException();
+            }
+            int read = out.position() - offset;
+            return read == 0 && !buffer.hasRemaining() ? -1 : read;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
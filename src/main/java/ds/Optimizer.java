@@ -0,0 +1,193 @@
+package ds;
+
+import java.util.Arrays;
+import java.util.Set;
+
+// The update rules a train request can choose with the optional "optimizer" field:
+//   sgd       plain SGD, the default; only run through this class when the request sets a learning rate
+//   momentum  heavy ball momentum: v = mu * v + g, w -= rate * v
+//   nesterov  Nesterov momentum in the form that only needs the gradient at the current weights
+//   rmsprop   each weight's step divided by a running root mean square of its gradients
+//   adam      running means of the gradients and their squares, corrected for their start at 0
+// The state of each rule is kept in double[] arrays shaped like the weight arrays, so a step allocates
+// nothing. The model keeps its optimizer between train requests, so momentum carries over from one
+// request to the next. A request that picks another rule, or another setting, starts a fresh one.
+// Like plain SGD, the rules train the weights only; the biases are set once and not trained.
+abstract class Optimizer {
+
+    static final Set<String> NAMES = Set.of("sgd", "momentum", "nesterov", "rmsprop", "adam");
+
+    // The learning rate of each rule when the request gives none. The adaptive rules normalise the
+    // gradient, so they need a much smaller rate than the network's default of 0.5.
+    static double defaultLearningRate(String name) {
+        switch (name) {
+            case "rmsprop":
+            case "adam":
+                return 0.05;
+            default:
+                return 0.5;
+        }
+    }
+
+    static final double DEFAULT_MOMENTUM = 0.9;
+    static final double BETA2 = 0.999;
+    static final double EPSILON = 1e-8;
+
+    final String name;
+    final DenseNetwork network;
+    final double learningRate;
+    final double momentum;
+    // Per weight state, shaped like hiddenWeights and outputWeights: the first moment or velocity,
+    // and the second moment. Rules that do not need one leave it null.
+    final double[] hiddenFirst;
+    final double[] outputFirst;
+    final double[] hiddenSecond;
+    final double[] outputSecond;
+    // The gradients of the current step and the per pass buffers of single row steps.
+    private final double[] hiddenGradients;
+    private final double[] outputGradients;
+    private final DenseNetwork.Activations activations;
+    long steps;
+
+    Optimizer(String name, DenseNetwork network, double learningRate, double momentum, boolean first, boolean second) {
+        this.name = name;
+        this.network = network;
+        this.learningRate = learningRate;
+        this.momentum = momentum;
+        hiddenFirst = first ? new double[network.hiddenWeights.length] : null;
+        outputFirst = first ? new double[network.outputWeights.length] : null;
+        hiddenSecond = second ? new double[network.hiddenWeights.length] : null;
+        outputSecond = second ? new double[network.outputWeights.length] : null;
+        hiddenGradients = new double[network.hiddenWeights.length];
+        outputGradients = new double[network.outputWeights.length];
+        activations = network.newActivations();
+    }
+
+    // Create the named rule for the network.
+    static Optimizer create(String name, DenseNetwork network, double learningRate, double momentum) {
+        switch (name) {
+            case "sgd":
+                return new Sgd(network, learningRate);
+            case "momentum":
+                return new Momentum(network, learningRate, momentum);
+            case "nesterov":
+                return new Nesterov(network, learningRate, momentum);
+            case "rmsprop":
+                return new RmsProp(network, learningRate, momentum);
+            case "adam":
+                return new Adam(network, learningRate, momentum);
+            default:
+                throw new IllegalArgumentException("Unknown optimizer " + name);
+        }
+    }
+
+    // True if this optimizer is the named rule with these settings for this network, so its state can be reused.
+    boolean matches(String name, DenseNetwork network, double learningRate, double momentum) {
+        return this.name.equals(name) && this.network == network && this.learningRate == learningRate
+                && this.momentum == momentum;
+    }
+
+    // Perform one step on a single training row and return the row's squared error before the step.
+    double train(double[] inputs, double[] targets) {
+        Arrays.fill(hiddenGradients, 0.0);
+        Arrays.fill(outputGradients, 0.0);
+        network.accumulateGradients(inputs, targets, activations, hiddenGradients, outputGradients);
+        double error = 0.0;
+        for (int o = 0; o < network.numOutputs; o++) {
+            double diff = targets[o] - activations.outputs[o];
+            error += 0.5 * diff * diff;
+        }
+        apply(hiddenGradients, outputGradients, 1.0);
+        return error;
+    }
+
+    // Take one step along the given gradients, laid out like hiddenWeights and outputWeights and multiplied by scale.
+    void apply(double[] hiddenGradients, double[] outputGradients, double scale) {
+        steps++;
+        update(network.hiddenWeights, hiddenGradients, scale, hiddenFirst, hiddenSecond);
+        update(network.outputWeights, outputGradients, scale, outputFirst, outputSecond);
+    }
+
+    // Update one weight array from its gradients and state.
+    abstract void update(double[] weights, double[] gradients, double scale, double[] first, double[] second);
+
+    // Plain SGD at a learning rate other than the network's own, which DenseNetwork.train would use.
+    static final class Sgd extends Optimizer {
+        Sgd(DenseNetwork network, double learningRate) {
+            super("sgd", network, learningRate, 0.0, false, false);
+        }
+
+        @Override
+        void update(double[] weights, double[] gradients, double scale, double[] unused, double[] unusedToo) {
+            for (int w = 0; w < weights.length; w++) {
+                weights[w] -= learningRate * scale * gradients[w];
+            }
+        }
+    }
+
+    static final class Momentum extends Optimizer {
+        Momentum(DenseNetwork network, double learningRate, double momentum) {
+            super("momentum", network, learningRate, momentum, true, false);
+        }
+
+        @Override
+        void update(double[] weights, double[] gradients, double scale, double[] velocity, double[] unused) {
+            for (int w = 0; w < weights.length; w++) {
+                velocity[w] = momentum * velocity[w] + scale * gradients[w];
+                weights[w] -= learningRate * velocity[w];
+            }
+        }
+    }
+
+    // Nesterov momentum as Bengio et al. rewrote it: the step that looks ahead along the velocity is folded
+    // into the update, so the gradient is taken at the stored weights like the other rules.
+    static final class Nesterov extends Optimizer {
+        Nesterov(DenseNetwork network, double learningRate, double momentum) {
+            super("nesterov", network, learningRate, momentum, true, false);
+        }
+
+        @Override
+        void update(double[] weights, double[] gradients, double scale, double[] velocity, double[] unused) {
+            for (int w = 0; w < weights.length; w++) {
+                double previous = velocity[w];
+                velocity[w] = momentum * previous - learningRate * scale * gradients[w];
+                weights[w] += -momentum * previous + (1.0 + momentum) * velocity[w];
+            }
+        }
+    }
+
+    // RMSProp, with momentum as the decay of the running mean of the squared gradients.
+    static final class RmsProp extends Optimizer {
+        RmsProp(DenseNetwork network, double learningRate, double decay) {
+            super("rmsprop", network, learningRate, decay, false, true);
+        }
+
+        @Override
+        void update(double[] weights, double[] gradients, double scale, double[] unused, double[] meanSquare) {
+            for (int w = 0; w < weights.length; w++) {
+                double gradient = scale * gradients[w];
+                meanSquare[w] = momentum * meanSquare[w] + (1.0 - momentum) * gradient * gradient;
+                weights[w] -= learningRate * gradient / (Math.sqrt(meanSquare[w]) + EPSILON);
+            }
+        }
+    }
+
+    // Adam, with momentum as beta1 and BETA2 for the second moment.
+    static final class Adam extends Optimizer {
+        Adam(DenseNetwork network, double learningRate, double beta1) {
+            super("adam", network, learningRate, beta1, true, true);
+        }
+
+        @Override
+        void update(double[] weights, double[] gradients, double scale, double[] mean, double[] meanSquare) {
+            double firstCorrection = 1.0 - Math.pow(momentum, steps);
+            double secondCorrection = 1.0 - Math.pow(BETA2, steps);
+            for (int w = 0; w < weights.length; w++) {
+                double gradient = scale * gradients[w];
+                mean[w] = momentum * mean[w] + (1.0 - momentum) * gradient;
+                meanSquare[w] = BETA2 * meanSquare[w] + (1.0 - BETA2) * gradient * gradient;
+                weights[w] -= learningRate * (mean[w] / firstCorrection) / (Math.sqrt(meanSquare[w] / secondCorrection) + EPSILON);
+            }
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package ds;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Read-only replicas of a training primary. The primary's Replicator sends each replica the weights of
+// every model as they are published, and the replica serves inference from them without training.
+// An update is a little-endian datagram, sent in Fragments when it is larger than one datagram:
+//
+//   magic          2 bytes  0xB1 0x52. Like the binary format, 0xB1 cannot start a JSON text.
+//   version        1 byte   VERSION
+//   kind           1 byte   SNAPSHOT or DELTA; acknowledgements set the high bit
+//   request id     4 bytes  chosen by the primary and echoed in the acknowledgement
+//   model id       1 byte length, then UTF-8
+//
+// SNAPSHOT continues with the version and publish time (2 longs), the layer sizes (3 ints), the learning
+// rate (1 double), all weights and biases in the order of a checkpoint (doubles), and the training set:
+// the number of rows (1 int), then each row's inputs and outputs (doubles).
+// DELTA continues with the version the replica must hold, the new version and its publish time (3 longs),
+// the number of parameters (1 int), and the change of each weight and bias as a float. A delta is half
+// the size of the weights it replaces and leaves the training set as it is.
+// An acknowledgement continues with a status (1 byte) and the version the replica now holds (1 long).
+// A replica that does not hold the delta's base version answers STATUS_RESYNC, and gets a snapshot next.
+class Replication {
+
+    static final byte MAGIC_0 = (byte) 0xB1;
+    static final byte MAGIC_1 = (byte) 0x52;
+    static final byte VERSION = 1;
+
+    static final byte SNAPSHOT = 1;
+    static final byte DELTA = 2;
+    static final byte ACK = (byte) 0x80;
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_RESYNC = 1;
+    static final byte STATUS_ERROR = 2;
+
+    // The requests a replica answers. Everything that would change a model's weights is refused; compile only
+    // changes how the replica serves them, until the next update.
+    static final Set<String> READ_TYPES = Set.of("getCurrentRange", "test", "testBatch", "getWeights",
+            "stats", "getModelStats", "replicationStatus", "compile");
+
+    // An acknowledgement decoded by the primary.
+    record Ack(byte status, long version) {
+    }
+
+    private final NeuralNetworkServer server;
+    private final String primary;
+    // The primary's host, the only address updates are accepted from, or null if it cannot be resolved.
+    private final InetAddress primaryAddress;
+    private final LongAdder snapshots = new LongAdder();
+    private final LongAdder deltas = new LongAdder();
+    private final LongAdder resyncs = new LongAdder();
+    private final AtomicLong lastLagMillis = new AtomicLong(-1);
+    private final AtomicLong lastUpdateMillis = new AtomicLong();
+    // The time from the primary publishing weights to this replica serving them.
+    private final LatencyHistogram lag = new LatencyHistogram();
+
+    Replication(NeuralNetworkServer server, String primary) {
+        this.server = server;
+        this.primary = primary;
+        int colon = primary.lastIndexOf(':');
+        InetAddress address = null;
+        try {
+            address = InetAddress.getByName(colon < 0 ? primary : primary.substring(0, colon));
+        } catch (IOException e) {
+            Log.error("Cannot resolve the primary " + primary + ": " + e.getMessage());
+        }
+        this.primaryAddress = address;
+    }
+
+    // Configure replica mode from the nn.replication.primary and nn.replication.self system properties.
+    // The replica asks the primary to send it updates. Its own address defaults to localhost and the port it
+    // listens on. Returns null when no primary is set, which leaves the server a normal, writable server.
+    static Replication fromSystemProperties(NeuralNetworkServer server, int port) {
+        String primary = System.getProperty("nn.replication.primary");
+        if (primary == null) {
+            return null;
+        }
+        Replication replication = new Replication(server, primary.trim());
+        String self = System.getProperty("nn.replication.self", "localhost:" + port);
+        Thread.ofVirtual().name("replica-subscribe").start(() -> replication.subscribe(self));
+        return replication;
+    }
+
+    // True if the sender is on the primary's host. The primary sends updates from its own port, not the
+    // one it listens on, so only the host is compared.
+    boolean fromPrimary(SocketAddress sender) {
+        return primaryAddress != null && sender instanceof InetSocketAddress from
+                && primaryAddress.equals(from.getAddress());
+    }
+
+    // Return true if the datagram in the buffer, from its position, is a replication message.
+    static boolean isReplication(ByteBuffer datagram) {
+        return datagram.remaining() >= 2 && datagram.get(datagram.position()) == MAGIC_0
+                && datagram.get(datagram.position() + 1) == MAGIC_1;
+    }
+
+    private void subscribe(String self) {
+        int colon = primary.lastIndexOf(':');
+        try (RequestDispatcher dispatcher = RequestDispatcher.fromSystemProperties(
+                InetAddress.getByName(primary.substring(0, colon)), Integer.parseInt(primary.substring(colon + 1)))) {
+            HashMap<String, Object> payload = new HashMap<>();
+            int requestId = dispatcher.nextRequestId();
+            payload.put("request", "replicaSubscribe");
+            payload.put("node", self);
+            payload.put("requestId", requestId);
+            byte[] reply = dispatcher.request(requestId, server.gson.toJson(payload).getBytes(StandardCharsets.UTF_8));
+            if (!new String(reply, StandardCharsets.UTF_8).contains("\"status\":\"OK\"")) {
+                Log.error("The primary " + primary + " refused to replicate to " + self);
+                return;
+            }
+            Log.info("Replicating " + primary);
+        } catch (IOException | RuntimeException e) {
+            Log.error("Cannot subscribe to " + primary + ": " + e.getMessage());
+        }
+    }
+
+    // The weights and biases of a network in one array, in the order of a checkpoint.
+    static double[] parameters(DenseNetwork network) {
+        double[] parameters = new double[network.hiddenWeights.length + network.outputWeights.length
+                + network.hiddenBiases.length + network.outputBiases.length];
+        int p = 0;
+        for (double[] part : new double[][]{network.hiddenWeights, network.outputWeights, network.hiddenBiases, network.outputBiases}) {
+            System.arraycopy(part, 0, parameters, p, part.length);
+            p += part.length;
+        }
+        return parameters;
+    }
+
+    // Copy an array made by parameters back into the network.
+    static void setParameters(DenseNetwork network, double[] parameters) {
+        int p = 0;
+        for (double[] part : new double[][]{network.hiddenWeights, network.outputWeights, network.hiddenBiases, network.outputBiases}) {
+            System.arraycopy(parameters, p, part, 0, part.length);
+            p += part.length;
+        }
+    }
+
+    private static ByteBuffer header(int capacity, byte kind, int requestId, String modelId) {
+        byte[] modelBytes = modelId.getBytes(StandardCharsets.UTF_8);
+        if (modelBytes.length > 255) {
+            throw new IllegalArgumentException("Model id longer than 255 bytes");
+        }
+        ByteBuffer out = ByteBuffer.allocate(capacity + 9 + modelBytes.length).order(ByteOrder.LITTLE_ENDIAN);
+        out.put(MAGIC_0).put(MAGIC_1).put(VERSION).put(kind).putInt(requestId);
+        out.put((byte) modelBytes.length).put(modelBytes);
+        return out;
+    }
+
+    // Encode the full weights and training set of a published model.
+    static byte[] encodeSnapshot(int requestId, String modelId, Model.Published published, double[] parameters,
+                                 ArrayList<Double[][]> trainingSets) {
+        DenseNetwork network = published.network().network;
+        int rowWidth = network.numInputs + network.numOutputs;
+        ByteBuffer out = header(2 * Long.BYTES + 4 * Integer.BYTES + Double.BYTES
+                + Double.BYTES * (parameters.length + trainingSets.size() * rowWidth), SNAPSHOT, requestId, modelId);
+        out.putLong(published.version()).putLong(published.publishedMillis())
+                .putInt(network.numInputs).putInt(network.numHidden).putInt(network.numOutputs)
+                .putDouble(network.learningRate);
+        for (double parameter : parameters) {
+            out.putDouble(parameter);
+        }
+        out.putInt(trainingSets.size());
+        for (Double[][] row : trainingSets) {
+            for (Double input : row[0]) {
+                out.putDouble(input);
+            }
+            for (Double output : row[1]) {
+                out.putDouble(output);
+            }
+        }
+        return out.array();
+    }
+
+    // Encode the change from the weights the replica holds (base) to the published weights. The changes
+    // are rounded to floats, and applied receives the weights the replica will hold after adding them.
+    static byte[] encodeDelta(int requestId, String modelId, long baseVersion, Model.Published published,
+                              double[] base, double[] parameters, double[] applied) {
+        ByteBuffer out = header(3 * Long.BYTES + Integer.BYTES + Float.BYTES * parameters.length,
+                DELTA, requestId, modelId);
+        out.putLong(baseVersion).putLong(published.version()).putLong(published.publishedMillis())
+                .putInt(parameters.length);
+        for (int p = 0; p < parameters.length; p++) {
+            float change = (float) (parameters[p] - base[p]);
+            out.putFloat(change);
+            applied[p] = base[p] + change;
+        }
+        return out.array();
+    }
+
+    // Decode the acknowledgement of an update.
+    static Ack decodeAck(byte[] reply) {
+        ByteBuffer in = ByteBuffer.wrap(reply).order(ByteOrder.LITTLE_ENDIAN);
+        if (reply.length < 17 || !isReplication(in) || (in.get(3) & ACK) == 0) {
+            return new Ack(STATUS_ERROR, 0);
+        }
+        return new Ack(in.get(8), in.getLong(9));
+    }
+
+    // Apply an update from the buffer to this replica's models. The buffer is then cleared and the
+    // acknowledgement is written into it, ready to be sent.
+    void apply(ByteBuffer buffer) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        int start = buffer.position();
+        byte kind = buffer.get(start + 3);
+        int requestId = buffer.getInt(start + 4);
+        byte status;
+        long version;
+        try {
+            buffer.position(start + 8);
+            byte[] modelBytes = new byte[buffer.get() & 0xFF];
+            buffer.get(modelBytes);
+            Model model = server.models.getOrCreate(new String(modelBytes, StandardCharsets.UTF_8));
+            if (kind == SNAPSHOT) {
+                version = applySnapshot(model, buffer);
+                status = STATUS_OK;
+            } else if (kind == DELTA) {
+                version = applyDelta(model, buffer);
+                status = version < 0 ? STATUS_RESYNC : STATUS_OK;
+                version = Math.abs(version);
+            } else {
+                throw new IllegalArgumentException("Unknown update kind " + kind);
+            }
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            Log.warn("Error in replication update: " + e.getMessage());
+            status = STATUS_ERROR;
+            version = 0;
+        }
+        acknowledge(buffer, kind, requestId, status, version);
+    }
+
+    // Answer an update received by a server that is not a replica with STATUS_ERROR.
+    static void reject(ByteBuffer buffer) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        int start = buffer.position();
+        acknowledge(buffer, buffer.get(start + 3), buffer.remaining() >= 8 ? buffer.getInt(start + 4) : 0, STATUS_ERROR, 0);
+    }
+
+    private static void acknowledge(ByteBuffer buffer, byte kind, int requestId, byte status, long version) {
+        buffer.clear();
+        buffer.put(MAGIC_0).put(MAGIC_1).put(VERSION).put((byte) (kind | ACK)).putInt(requestId)
+                .put(status).putLong(version);
+        buffer.flip();
+    }
+
+    // Replace the model's network and training set and return the version now held.
+    private long applySnapshot(Model model, ByteBuffer in) {
+        long version = in.getLong();
+        long publishedMillis = in.getLong();
+        int numInputs = in.getInt();
+        int numHidden = in.getInt();
+        int numOutputs = in.getInt();
+        // Check the sizes against the update before allocating, as the training set is checked below.
+        long fits = in.remaining() / Double.BYTES;
+        if (numInputs < 1 || numHidden < 1 || numOutputs < 1
+                || numInputs > fits || numHidden > fits || numOutputs > fits
+                || (long) numHidden * (numInputs + numOutputs + 1) + numOutputs + 1 > fits) {
+            throw new IllegalArgumentException("Network of " + numInputs + ", " + numHidden + " and " + numOutputs
+                    + " neurons does not fit the update");
+        }
+        DenseNetwork network = new DenseNetwork(numInputs, numHidden, numOutputs);
+        network.learningRate = in.getDouble();
+        double[] parameters = new double[parameters(network).length];
+        for (int p = 0; p < parameters.length; p++) {
+            parameters[p] = in.getDouble();
+        }
+        setParameters(network, parameters);
+        int rows = in.getInt();
+        if (rows < 0 || (long) rows * (network.numInputs + network.numOutputs) * Double.BYTES > in.remaining()) {
+            throw new IllegalArgumentException("Training set larger than the update");
+        }
+        ArrayList<Double[][]> trainingSets = new ArrayList<Double[][]>(rows);
+        for (int r = 0; r < rows; r++) {
+            Double[] inputs = new Double[network.numInputs];
+            Double[] outputs = new Double[network.numOutputs];
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i] = in.getDouble();
+            }
+            for (int o = 0; o < outputs.length; o++) {
+                outputs[o] = in.getDouble();
+            }
+            trainingSets.add(new Double[][]{inputs, outputs});
+        }
+        model.lock.writeLock().lock();
+        try {
+            model.neuralNetwork = new NeuralNetwork(network);
+            model.userTrainingSets = trainingSets;
+            model.publishSnapshot(version, publishedMillis);
+        } finally {
+            model.lock.writeLock().unlock();
+        }
+        server.models.resized(model);
+        snapshots.increment();
+        applied(publishedMillis);
+        return version;
+    }
+
+    // Add a delta to the model's weights and return the version now held, or minus the version held
+    // if it is not the delta's base and a snapshot is needed.
+    private long applyDelta(Model model, ByteBuffer in) {
+        long baseVersion = in.getLong();
+        long version = in.getLong();
+        long publishedMillis = in.getLong();
+        int count = in.getInt();
+        model.lock.writeLock().lock();
+        try {
+            long held = model.published().version();
+            DenseNetwork network = model.neuralNetwork.network;
+            double[] parameters = parameters(network);
+            if (held == version) {
+                // A retransmission of a delta already applied.
+                return version;
+            }
+            if (held != baseVersion || count != parameters.length) {
+                resyncs.increment();
+                return -held;
+            }
+            for (int p = 0; p < parameters.length; p++) {
+                parameters[p] += in.getFloat();
+            }
+            setParameters(network, parameters);
+            model.publishSnapshot(version, publishedMillis);
+        } finally {
+            model.lock.writeLock().unlock();
+        }
+        deltas.increment();
+        applied(publishedMillis);
+        return version;
+    }
+
+    private void applied(long publishedMillis) {
+        long now = System.currentTimeMillis();
+        long lagMillis = Math.max(0, now - publishedMillis);
+        lastLagMillis.set(lagMillis);
+        lastUpdateMillis.set(now);
+        lag.record(lagMillis * 1_000_000L);
+    }
+
+    // The replica's update counters and its replication lag. The lag compares the primary's clock with
+    // this replica's, so it is exact for replicas on the same host.
+    HashMap<String, Object> status() {
+        HashMap<String, Object> response = new HashMap<>();
+        response.put("response", "replicationStatus");
+        response.put("status", "OK");
+        response.put("role", "replica");
+        response.put("primary", primary);
+        response.put("snapshots", snapshots.sum());
+        response.put("deltas", deltas.sum());
+        response.put("resyncs", resyncs.sum());
+        response.put("lastLagMillis", lastLagMillis.get());
+        long last = lastUpdateMillis.get();
+        response.put("sinceLastUpdateMillis", last == 0 ? -1 : System.currentTimeMillis() - last);
+        response.put("lag", lag.summary());
+        return response;
+    }
+}
@@ -0,0 +1,245 @@
+package ds;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// The primary's side of Replication. Replicas subscribe with a replicaSubscribe request, and a background
+// thread then checks every intervalMillis for models whose published version a replica does not hold yet.
+// The first update of a model, and any update that changes its shape or training set, is a snapshot.
+// Later updates are float deltas from the weights the replica acknowledged. The primary adds the rounded
+// deltas to its copy of the replica's weights exactly as the replica does, so rounding errors are carried
+// into the next delta instead of adding up.
+// Each replica has at most one update in flight per model, so a slow replica skips intermediate versions
+// rather than queueing them; the next update takes it straight to the latest weights.
+// A replica may only subscribe from the host it names, or, when nn.replication.replicas lists the replicas,
+// only as one of them. At most maxReplicas are served, and a replica that fails maxFailures updates in a
+// row is dropped until it subscribes again.
+class Replicator {
+
+    // What the primary knows about one model on one replica.
+    private static final class ModelState {
+        long version;
+        // The weights the replica holds at version, or null when the next update must be a snapshot.
+        double[] base;
+        ArrayList<Double[][]> trainingSets;
+        boolean inFlight;
+    }
+
+    private static final class Replica {
+        final String node;
+        final RequestDispatcher dispatcher;
+        final ConcurrentHashMap<String, ModelState> models = new ConcurrentHashMap<>();
+        final LongAdder snapshots = new LongAdder();
+        final LongAdder deltas = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+        Replica(String node, RequestDispatcher dispatcher) {
+            this.node = node;
+            this.dispatcher = dispatcher;
+        }
+    }
+
+    private final NeuralNetworkServer server;
+    private final long intervalMillis;
+    private final Set<String> allowed;
+    private final int maxReplicas;
+    private final int maxFailures;
+    private final ConcurrentHashMap<String, Replica> replicas = new ConcurrentHashMap<>();
+    private final LongAdder dropped = new LongAdder();
+    private Thread thread;
+
+    Replicator(NeuralNetworkServer server, long intervalMillis, Set<String> allowed, int maxReplicas, int maxFailures) {
+        this.server = server;
+        this.intervalMillis = intervalMillis;
+        this.allowed = Set.copyOf(allowed);
+        this.maxReplicas = Math.max(1, maxReplicas);
+        this.maxFailures = Math.max(1, maxFailures);
+    }
+
+    // Configure the replicator from the nn.replication.intervalMillis, nn.replication.replicas,
+    // nn.replication.maxReplicas and nn.replication.maxFailures system properties.
+    static Replicator fromSystemProperties(NeuralNetworkServer server) {
+        Set<String> allowed = new HashSet<>();
+        for (String node : System.getProperty("nn.replication.replicas", "").split(",")) {
+            if (!node.isBlank()) {
+                allowed.add(node.trim());
+            }
+        }
+        return new Replicator(server, Math.max(1, Long.getLong("nn.replication.intervalMillis", 50L)), allowed,
+                Integer.getInteger("nn.replication.maxReplicas", 16),
+                Integer.getInteger("nn.replication.maxFailures", 100));
+    }
+
+    // Start sending updates to a replica. A replica that subscribes again, for example after a restart,
+    // gets a snapshot of every model.
+    HashMap<String, Object> subscribe(String node, SocketAddress sender) {
+        int colon = node == null ? -1 : node.lastIndexOf(':');
+        if (colon < 0) {
+            return server.errorResponse();
+        }
+        if (!allowed.isEmpty() && !allowed.contains(node)) {
+            Log.warn("Error in input: " + node + " is not in nn.replication.replicas.");
+            return server.errorResponse();
+        }
+        try {
+            InetAddress address = InetAddress.getByName(node.substring(0, colon));
+            int port = Integer.parseInt(node.substring(colon + 1));
+            if (allowed.isEmpty()
+                    && !(sender instanceof InetSocketAddress from && address.equals(from.getAddress()))) {
+                Log.warn("Error in input: a replica must subscribe from the host it names, not " + sender + ".");
+                return server.errorResponse();
+            }
+            synchronized (this) {
+                if (!replicas.containsKey(node) && replicas.size() >= maxReplicas) {
+                    Log.warn("Error in input: already replicating to " + maxReplicas + " replicas.");
+                    return server.errorResponse();
+                }
+                RequestDispatcher dispatcher = RequestDispatcher.fromSystemProperties(address, port);
+                Replica previous = replicas.put(node, new Replica(node, dispatcher));
+                if (previous != null) {
+                    previous.dispatcher.close();
+                }
+                if (thread == null) {
+                    thread = Thread.ofPlatform().name("replicator").daemon().start(this::run);
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            Log.warn("Cannot replicate to " + node + ": " + e.getMessage());
+            return server.errorResponse();
+        }
+        Log.info("Replicating to " + node);
+        HashMap<String, Object> response = new HashMap<>();
+        response.put("response", "replicaSubscribe");
+        response.put("status", "OK");
+        return response;
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            List<Model> models = server.models.snapshot();
+            for (Replica replica : replicas.values()) {
+                for (Model model : models) {
+                    try {
+                        sync(replica, model);
+                    } catch (RuntimeException e) {
+                        Log.warn("Replicating " + model.id + " to " + replica.node + " failed: " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    // Send the replica the latest weights of the model, unless it holds them or an update is in flight.
+    private void sync(Replica replica, Model model) {
+        ModelState state = replica.models.computeIfAbsent(model.id, id -> new ModelState());
+        Model.Published published = model.published();
+        ArrayList<Double[][]> trainingSets = model.userTrainingSets;
+        byte[] message;
+        double[] applied;
+        synchronized (state) {
+            if (state.inFlight || (state.version == published.version() && state.trainingSets == trainingSets)) {
+                return;
+            }
+            double[] parameters = Replication.parameters(published.network().network);
+            int requestId = replica.dispatcher.nextRequestId();
+            if (state.base == null || state.base.length != parameters.length || state.trainingSets != trainingSets
+                    || published.version() < state.version) {
+                message = Replication.encodeSnapshot(requestId, model.id, published, parameters, trainingSets);
+                applied = parameters;
+                replica.snapshots.increment();
+            } else {
+                applied = new double[parameters.length];
+                message = Replication.encodeDelta(requestId, model.id, state.version, published, state.base, parameters, applied);
+                replica.deltas.increment();
+            }
+            state.inFlight = true;
+            replica.bytes.add(message.length);
+            replica.dispatcher.send(requestId, message).whenComplete((reply, error) -> {
+                Replication.Ack ack = error == null ? Replication.decodeAck(reply) : null;
+                boolean failed = ack == null || ack.status() == Replication.STATUS_ERROR;
+                synchronized (state) {
+                    state.inFlight = false;
+                    if (ack != null && ack.status() == Replication.STATUS_OK) {
+                        state.version = ack.version();
+                        state.base = applied;
+                        state.trainingSets = trainingSets;
+                    } else {
+                        // The replica missed an update or could not apply it, so start again from a snapshot.
+                        state.base = null;
+                    }
+                }
+                if (!failed) {
+                    replica.consecutiveFailures.set(0);
+                } else {
+                    replica.failures.increment();
+                    if (replica.consecutiveFailures.incrementAndGet() >= maxFailures) {
+                        drop(replica);
+                    }
+                }
+            });
+        }
+    }
+
+    // Stop replicating to a replica that keeps failing, and close its dispatcher. Outside the lock of
+    // any model state, since closing fails the replica's other updates in flight.
+    private void drop(Replica replica) {
+        if (replicas.remove(replica.node, replica)) {
+            dropped.increment();
+            Log.warn("Dropping replica " + replica.node + " after " + maxFailures + " failed updates in a row");
+            replica.dispatcher.close();
+        }
+    }
+
+    // The replicas and how far each is behind the primary, in versions summed over all models.
+    HashMap<String, Object> status() {
+        HashMap<String, Object> response = new HashMap<>();
+        response.put("response", "replicationStatus");
+        response.put("status", "OK");
+        response.put("role", "primary");
+        List<Model> models = server.models.snapshot();
+        List<HashMap<String, Object>> list = new ArrayList<>();
+        for (Replica replica : replicas.values()) {
+            long behind = 0;
+            for (Model model : models) {
+                ModelState state = replica.models.get(model.id);
+                long held;
+                if (state == null) {
+                    held = 0;
+                } else {
+                    synchronized (state) {
+                        held = state.version;
+                    }
+                }
+                behind += Math.max(0, model.published().version() - held);
+            }
+            HashMap<String, Object> entry = new HashMap<>();
+            entry.put("node", replica.node);
+            entry.put("snapshots", replica.snapshots.sum());
+            entry.put("deltas", replica.deltas.sum());
+            entry.put("bytes", replica.bytes.sum());
+            entry.put("failures", replica.failures.sum());
+            entry.put("versionsBehind", behind);
+            list.add(entry);
+        }
+        response.put("replicas", list);
+        response.put("dropped", dropped.sum());
+        return response;
+    }
+}
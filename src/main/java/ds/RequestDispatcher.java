@@ -0,0 +1,280 @@
+package ds;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Sends requests to the server over one socket and matches each reply to its request by request id,
+// so any number of requests can be outstanding at once. A receiver thread reads the replies.
+// A request that gets no reply is sent again with the same id, waiting twice as long each time, and
+// fails with a SocketTimeoutException after the last retry. The server answers a retransmitted request
+// from its duplicate cache, so a retried train is not performed twice.
+// Requests and replies larger than one datagram travel in Fragments. A fragmented request uses its
+// request id as the message id, so a retransmission fills in the fragments the server is missing.
+// A busy reply from the server's admission control is not returned to the caller while retries remain:
+// the request is sent again once the wait the reply asks for has passed. If the retries run out, the
+// request completes with the busy reply.
+class RequestDispatcher implements AutoCloseable {
+
+    // The largest datagram UDP can carry.
+    private static final int MAX_DATAGRAM = 65507;
+
+    private final DatagramSocket socket;
+    private final InetAddress host;
+    private final int port;
+    private final long timeoutMillis;
+    private final int retries;
+    private final ConcurrentHashMap<Integer, Outstanding> outstanding = new ConcurrentHashMap<>();
+    private final AtomicInteger lastRequestId = new AtomicInteger();
+    private final Fragments fragments = Fragments.fromSystemProperties();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "request-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Thread receiver;
+
+    // A request waiting for its reply.
+    private final class Outstanding {
+        final int requestId;
+        final List<byte[]> datagrams;
+        final CompletableFuture<byte[]> reply = new CompletableFuture<>();
+        int attempts;
+        // The scheduled next attempt, and the last busy reply, if the server refused the request.
+        ScheduledFuture<?> next;
+        byte[] busyReply;
+
+        Outstanding(int requestId, byte[] data) {
+            this.requestId = requestId;
+            this.datagrams = Fragments.datagrams(data, requestId);
+        }
+
+        // Send the request and schedule the next attempt, or fail once the retries are used up.
+        synchronized void attempt() {
+            if (reply.isDone()) {
+                return;
+            }
+            if (attempts > retries) {
+                outstanding.remove(requestId, this);
+                if (busyReply != null) {
+                    reply.complete(busyReply);
+                    return;
+                }
+                reply.completeExceptionally(new SocketTimeoutException(
+                        "No reply to request " + requestId + " after " + attempts + " attempts"));
+                return;
+            }
+            try {
+                for (int d = 0; d < datagrams.size(); d++) {
+                    byte[] datagram = datagrams.get(d);
+                    socket.send(new DatagramPacket(datagram, datagram.length, host, port));
+                    Fragments.pace(d);
+                }
+            } catch (IOException e) {
+                outstanding.remove(requestId, this);
+                reply.completeExceptionally(e);
+                return;
+            }
+            long wait = timeoutMillis << Math.min(attempts, 16);
+            attempts++;
+            next = timer.schedule(this::attempt, wait, TimeUnit.MILLISECONDS);
+        }
+
+        // The server refused the request for now: send it again after the wait it asked for instead of
+        // after the timeout, or complete with the busy reply if no retries are left.
+        synchronized void busy(byte[] data, long retryAfterMillis) {
+            if (reply.isDone()) {
+                return;
+            }
+            busyReply = data;
+            if (next != null) {
+                next.cancel(false);
+            }
+            if (attempts > retries) {
+                outstanding.remove(requestId, this);
+                reply.complete(data);
+                return;
+            }
+            next = timer.schedule(this::attempt, retryAfterMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    RequestDispatcher(InetAddress host, int port, long timeoutMillis, int retries) throws SocketException {
+        this.socket = new DatagramSocket();
+        socket.setReceiveBufferSize(Fragments.RECEIVE_BUFFER);
+        this.host = host;
+        this.port = port;
+        this.timeoutMillis = timeoutMillis;
+        this.retries = retries;
+        receiver = new Thread(this::receive, "request-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    // Configure the timeout of the first attempt and the number of retries from the nn.timeoutMillis
+    // and nn.retries system properties.
+    static RequestDispatcher fromSystemProperties(InetAddress host, int port) throws SocketException {
+        return new RequestDispatcher(host, port, Long.getLong("nn.timeoutMillis", 1000L), Integer.getInteger("nn.retries", 3));
+    }
+
+    // A new request id. Ids start at 1, because 0 means no id in the binary format.
+    int nextRequestId() {
+        int id = lastRequestId.incrementAndGet();
+        if (id <= 0) {
+            lastRequestId.compareAndSet(id, 0);
+            return nextRequestId();
+        }
+        return id;
+    }
+
+    // Send a request that carries the given id and return the future of its reply.
+    CompletableFuture<byte[]> send(int requestId, byte[] data) {
+        Outstanding request;
+        try {
+            request = new Outstanding(requestId, data);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(new IOException(e.getMessage()));
+        }
+        Outstanding earlier = outstanding.put(requestId, request);
+        if (earlier != null) {
+            earlier.reply.completeExceptionally(new IllegalStateException("Request id " + requestId + " reused"));
+        }
+        request.attempt();
+        return request.reply;
+    }
+
+    // Send a request and wait for its reply.
+    byte[] request(int requestId, byte[] data) throws IOException {
+        try {
+            return send(requestId, data).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for request " + requestId);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    // Complete the requests whose replies arrive, reassembling fragmented replies first. Replies to requests
+    // that have already been answered, for example the second answer to a retransmitted request, are ignored.
+    private void receive() {
+        byte[] buffer = new byte[MAX_DATAGRAM];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!socket.isClosed()) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+            } catch (IOException e) {
+                break;
+            }
+            byte[] reply;
+            ByteBuffer datagram = ByteBuffer.wrap(buffer, 0, packet.getLength());
+            if (Fragments.isFragment(datagram)) {
+                reply = fragments.accept(packet.getSocketAddress(), datagram);
+                if (reply == null) {
+                    continue;
+                }
+            } else {
+                reply = Arrays.copyOf(buffer, packet.getLength());
+            }
+            int requestId = requestId(reply, reply.length);
+            long retryAfter = retryAfterMillis(reply, reply.length);
+            if (retryAfter >= 0) {
+                Outstanding request = outstanding.get(requestId);
+                if (request != null) {
+                    request.busy(reply, retryAfter);
+                }
+                continue;
+            }
+            Outstanding request = outstanding.remove(requestId);
+            if (request != null) {
+                request.reply.complete(reply);
+            }
+        }
+    }
+
+    // The wait a busy reply asks for, or -1 if the binary or JSON reply is not a busy reply.
+    static long retryAfterMillis(byte[] data, int length) {
+        ByteBuffer reply = ByteBuffer.wrap(data, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+        if (BinaryProtocol.isBinary(reply)) {
+            return length >= BinaryProtocol.HEADER_SIZE + 5 && reply.get(BinaryProtocol.HEADER_SIZE) == BinaryProtocol.STATUS_BUSY
+                    ? reply.getInt(BinaryProtocol.HEADER_SIZE + 1) : -1;
+        }
+        if (Replication.isReplication(reply)) {
+            return -1;
+        }
+        String text = new String(data, 0, length, StandardCharsets.UTF_8);
+        if (!text.contains("\"status\":\"Busy\"")) {
+            return -1;
+        }
+        int field = text.indexOf("\"retryAfterMillis\":");
+        if (field < 0) {
+            return 0;
+        }
+        int start = field + "\"retryAfterMillis\":".length();
+        int end = start;
+        while (end < text.length() && Character.isDigit(text.charAt(end))) {
+            end++;
+        }
+        try {
+            return Long.parseLong(text.substring(start, end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // The request id of a binary, replication or JSON reply, or 0 if it has none.
+    static int requestId(byte[] data, int length) {
+        ByteBuffer reply = ByteBuffer.wrap(data, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+        if (BinaryProtocol.isBinary(reply)) {
+            return length >= BinaryProtocol.HEADER_SIZE ? reply.getInt(4) : 0;
+        }
+        if (Replication.isReplication(reply)) {
+            return length >= 8 ? reply.getInt(4) : 0;
+        }
+        // Find the field without parsing the whole reply.
+        String text = new String(data, 0, length, StandardCharsets.UTF_8);
+        int field = text.indexOf("\"requestId\":");
+        if (field < 0) {
+            return 0;
+        }
+        int start = field + "\"requestId\":".length();
+        int end = start;
+        while (end < text.length() && (Character.isDigit(text.charAt(end)) || text.charAt(end) == '-')) {
+            end++;
+        }
+        try {
+            return Integer.parseInt(text.substring(start, end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+        timer.shutdownNow();
+        for (Outstanding request : outstanding.values()) {
+            request.reply.completeExceptionally(new SocketException("Closed"));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package ds;
+
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and latency histograms of a running server, served by the stats request.
+// Each request type has a histogram of the time its handler took, and each wire format has one of
+// the whole in-process path: parsing the datagram, running the handler and encoding the response.
+// Counters are LongAdders, so threads recording at once do not contend on one cache line.
+class ServerMetrics {
+
+    private final long startNanos = System.nanoTime();
+    private final ConcurrentHashMap<String, LatencyHistogram> handlers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LatencyHistogram> parsing = new ConcurrentHashMap<>();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder datagramsIn = new LongAdder();
+    private final LongAdder datagramsOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder trainingSteps = new LongAdder();
+    private final LongAdder trainingNanos = new LongAdder();
+
+    // Record one handled request. Unknown request types are counted as errors and not given a histogram,
+    // so garbage requests cannot grow the map.
+    void recordRequest(String requestType, long nanos, boolean ok, boolean known) {
+        requests.increment();
+        if (!ok) {
+            errors.increment();
+        }
+        if (known) {
+            handlers.computeIfAbsent(requestType, type -> new LatencyHistogram()).record(nanos);
+        }
+    }
+
+    // Record the in-process time of one datagram in the "json" or "binary" format.
+    void recordParse(String format, long nanos) {
+        parsing.computeIfAbsent(format, f -> new LatencyHistogram()).record(nanos);
+    }
+
+    // Record a request that failed before it reached a handler, for example malformed JSON.
+    void recordError() {
+        requests.increment();
+        errors.increment();
+    }
+
+    // Record a retransmitted request answered from the duplicate cache.
+    void recordDuplicate() {
+        duplicates.increment();
+    }
+
+    void recordReceived(int bytes) {
+        datagramsIn.increment();
+        bytesIn.add(bytes);
+    }
+
+    void recordSent(int bytes) {
+        datagramsOut.increment();
+        bytesOut.add(bytes);
+    }
+
+    void recordTraining(long steps, long nanos) {
+        trainingSteps.add(steps);
+        trainingNanos.add(nanos);
+    }
+
+    // All counters, the training rate and the latency summaries, in the shape of a response.
+    HashMap<String, Object> stats() {
+        HashMap<String, Object> stats = new HashMap<>();
+        stats.put("uptimeSeconds", (System.nanoTime() - startNanos) / 1_000_000_000L);
+        stats.put("requests", requests.sum());
+        stats.put("errors", errors.sum());
+        stats.put("duplicates", duplicates.sum());
+        stats.put("datagramsIn", datagramsIn.sum());
+        stats.put("datagramsOut", datagramsOut.sum());
+        stats.put("bytesIn", bytesIn.sum());
+        stats.put("bytesOut", bytesOut.sum());
+        long steps = trainingSteps.sum();
+        long nanos = trainingNanos.sum();
+        stats.put("logDropped", Log.dropped());
+        stats.put("trainingSteps", steps);
+        stats.put("trainingStepsPerSecond", nanos == 0 ? 0.0 : Math.round(steps * 1e9 / nanos));
+        stats.put("latency", summaries(handlers));
+        stats.put("parseLatency", summaries(parsing));
+        return stats;
+    }
+
+    private static TreeMap<String, Object> summaries(ConcurrentHashMap<String, LatencyHistogram> histograms) {
+        TreeMap<String, Object> summaries = new TreeMap<>();
+        histograms.forEach((name, histogram) -> summaries.put(name, histogram.summary()));
+        return summaries;
+    }
+}
@@ -0,0 +1,104 @@
+package ds;
+
+import java.util.HashMap;
+import java.util.SplittableRandom;
+
+// A training run started by a trainAsync request.
+// The job trains in slices of SLICE_STEPS steps. The model's write lock is held for one slice at a time,
+// so setCurrentRange and checkpoints get their turn between slices. Test requests do not wait for the
+// lock at all; they run on the weights last published by the training.
+// All slices share one TrainingRun, so the job builds its pool once and draws its rows from one stream.
+class TrainingJob implements Runnable {
+
+    // The number of steps run under one acquisition of the model's write lock.
+    static final int SLICE_STEPS = 1000;
+
+    enum State { QUEUED, RUNNING, DONE, CANCELLED, FAILED }
+
+    final String id;
+    private final NeuralNetworkServer server;
+    private final Model model;
+    private final int iterations;
+    private final NeuralNetworkServer.TrainingRequest request;
+    // One stream for the whole job, so a seeded job samples the same rows as a seeded train request.
+    private final SplittableRandom random;
+    // Called once the job has finished, whether it ran or was cancelled while queued.
+    private final Runnable finished;
+
+    private volatile State state = State.QUEUED;
+    private volatile boolean cancelRequested;
+    // Set when a job with a targetError reached it before its iterations ran out.
+    private volatile boolean converged;
+    private volatile int stepsDone;
+    private volatile double error = Double.NaN;
+    private volatile long startNanos;
+    private volatile long endNanos;
+
+    TrainingJob(String id, NeuralNetworkServer server, Model model, NeuralNetworkServer.TrainingRequest request,
+                Runnable finished) {
+        this.id = id;
+        this.server = server;
+        this.model = model;
+        this.iterations = request.iterations;
+        this.request = request;
+        this.random = server.trainingRandom(request);
+        this.finished = finished;
+    }
+
+    @Override
+    public void run() {
+        startNanos = System.nanoTime();
+        state = State.RUNNING;
+        try (TrainingRun run = new TrainingRun(request, random)) {
+            while (stepsDone < iterations && !cancelRequested) {
+                int slice = Math.min(SLICE_STEPS, iterations - stepsDone);
+                NeuralNetworkServer.TrainingResult result = server.trainSteps(model, slice, request, run);
+                error = result.error();
+                stepsDone += result.steps();
+                if (result.converged()) {
+                    converged = true;
+                    break;
+                }
+            }
+            state = cancelRequested ? State.CANCELLED : State.DONE;
+        } catch (RuntimeException e) {
+            Log.error("Training job " + id + " failed: " + e.getMessage());
+            state = State.FAILED;
+        } finally {
+            endNanos = System.nanoTime();
+            finished.run();
+        }
+        Log.info("Training job " + id + " " + state + " after " + stepsDone + " steps, error ", error);
+    }
+
+    // Stop the job after the slice it is running. A queued job stops before its first slice.
+    void cancel() {
+        cancelRequested = true;
+    }
+
+    boolean isFinished() {
+        State current = state;
+        return current == State.DONE || current == State.CANCELLED || current == State.FAILED;
+    }
+
+    // The state of the job, steps done, the total error after the last slice and the training rate.
+    HashMap<String, Object> progress() {
+        HashMap<String, Object> progress = new HashMap<>();
+        State current = state;
+        int steps = stepsDone;
+        long start = startNanos;
+        long end = isFinished() ? endNanos : System.nanoTime();
+        progress.put("jobId", id);
+        progress.put("state", current.name());
+        progress.put("steps", steps);
+        progress.put("iterations", iterations);
+        if (request.targetError != null) {
+            progress.put("converged", converged);
+        }
+        if (!Double.isNaN(error)) {
+            progress.put("error", error);
+        }
+        progress.put("stepsPerSecond", current == State.QUEUED || end == start ? 0.0 : steps * 1e9 / (end - start));
+        return progress;
+    }
+}
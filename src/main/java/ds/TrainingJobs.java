@@ -0,0 +1,84 @@
+package ds;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The background training jobs of the server and the executor they run on.
+// Finished jobs are kept so that their final status can be read, up to MAX_FINISHED_JOBS of them.
+// At most maxUnfinished jobs are queued or running at once; further trainAsync requests are refused
+// until some finish, so the queue and the job map stay bounded.
+class TrainingJobs {
+
+    static final int MAX_FINISHED_JOBS = 1000;
+
+    private final ExecutorService executor;
+    private final Map<String, TrainingJob> jobs = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final AtomicInteger unfinished = new AtomicInteger();
+    private final int maxUnfinished;
+
+    TrainingJobs(int threads, int maxUnfinished) {
+        this.maxUnfinished = maxUnfinished;
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "training-job");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Configure the pool size and the limit on unfinished jobs from the nn.jobs.threads and nn.jobs.max
+    // system properties.
+    static TrainingJobs fromSystemProperties() {
+        return new TrainingJobs(Integer.getInteger("nn.jobs.threads", Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger("nn.jobs.max", 100));
+    }
+
+    // Queue a job that trains the model as the request describes, or return null if maxUnfinished jobs
+    // are already queued or running.
+    TrainingJob start(NeuralNetworkServer server, Model model, NeuralNetworkServer.TrainingRequest request) {
+        if (unfinished.incrementAndGet() > maxUnfinished) {
+            unfinished.decrementAndGet();
+            return null;
+        }
+        TrainingJob job = null;
+        try {
+            removeFinishedJobs();
+            job = new TrainingJob(Long.toString(nextId.getAndIncrement()), server, model, request,
+                    unfinished::decrementAndGet);
+            jobs.put(job.id, job);
+            executor.execute(job);
+        } catch (RuntimeException e) {
+            // The job never ran, so it will not give its slot back itself.
+            if (job != null) {
+                jobs.remove(job.id, job);
+            }
+            unfinished.decrementAndGet();
+            throw e;
+        }
+        return job;
+    }
+
+    TrainingJob get(String id) {
+        return id == null ? null : jobs.get(id);
+    }
+
+    // Forget the oldest finished jobs once more than MAX_FINISHED_JOBS are held.
+    private void removeFinishedJobs() {
+        if (jobs.size() <= MAX_FINISHED_JOBS) {
+            return;
+        }
+        long oldestKept = nextId.get() - MAX_FINISHED_JOBS;
+        Iterator<TrainingJob> iterator = jobs.values().iterator();
+        while (iterator.hasNext()) {
+            TrainingJob job = iterator.next();
+            if (job.isFinished() && Long.parseLong(job.id) < oldestKept) {
+                iterator.remove();
+            }
+        }
+    }
+}
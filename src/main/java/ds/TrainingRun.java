@@ -0,0 +1,52 @@
+package ds;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+// The state of one training run that outlives a single call to trainSteps: the random stream the rows
+// are drawn from, the pool of the mini-batch or Hogwild mode and the epoch sampler. A train request makes
+// one run, and a trainAsync job keeps one for all its slices, so it does not build a new pool every
+// SLICE_STEPS steps, and an epoch a slice left unfinished goes on in the next slice.
+// Closing the run shuts down a pool it created.
+class TrainingRun implements AutoCloseable {
+
+    final SplittableRandom random;
+    final ForkJoinPool pool;
+    private EpochSampler epochs;
+
+    TrainingRun(NeuralNetworkServer.TrainingRequest request, SplittableRandom random) {
+        this.random = random;
+        if (hogwild(request)) {
+            pool = new ForkJoinPool(request.threads);
+        } else if (miniBatch(request) && request.parallelism != null) {
+            pool = new ForkJoinPool(request.parallelism);
+        } else {
+            pool = ForkJoinPool.commonPool();
+        }
+    }
+
+    // Mini-batch mode: batchSize is over 1.
+    static boolean miniBatch(NeuralNetworkServer.TrainingRequest request) {
+        return request.batchSize != null && request.batchSize > 1;
+    }
+
+    // Hogwild mode: not mini-batch, and threads is over 1.
+    static boolean hogwild(NeuralNetworkServer.TrainingRequest request) {
+        return !miniBatch(request) && request.threads != null && request.threads > 1;
+    }
+
+    // The run's epoch sampler for a table of rows rows. A new one is started if the table changed size.
+    EpochSampler epochs(int rows) {
+        if (epochs == null || epochs.rows() != rows) {
+            epochs = new EpochSampler(rows, random);
+        }
+        return epochs;
+    }
+
+    @Override
+    public void close() {
+        if (pool != ForkJoinPool.commonPool()) {
+            pool.shutdown();
+        }
+    }
+}